@@ -0,0 +1,207 @@
+package a1_2001040024;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+/**
+ * Generates synthetic corpora for the benchmarks by scaling up the vocabulary of the docs directory and the stop words
+ * file. Words are drawn with a Zipf distribution over their rank in the original documents, so frequent words stay
+ * frequent and queries have realistic postings list lengths. Generated corpora are written once under the temporary
+ * directory and reused by later runs.
+ */
+public final class CorpusGenerator {
+    private static final int MIN_TITLE_WORDS = 2;
+    private static final int MAX_TITLE_WORDS = 8;
+    private static final int MIN_BODY_WORDS = 80;
+    private static final int MAX_BODY_WORDS = 400;
+
+    private final Path root;
+    private final String[] words;
+    private final double[] cumulative;
+
+    /**
+     * Constructs a generator from the docs directory and the stop words file of the given project root.
+     *
+     * @param root The project root.
+     * @throws IOException If the documents or the stop words cannot be read.
+     */
+    public CorpusGenerator(Path root) throws IOException {
+        this.root = root;
+        Map<String, Integer> counts = new HashMap<>();
+        try (Stream<Path> paths = Files.list(root.resolve("docs"))) {
+            for (Path path : (Iterable<Path>) paths.sorted()::iterator) {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    for (String word : line.split(" ")) {
+                        counts.merge(word, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        for (String word : Files.readAllLines(root.resolve("stopwords.txt"), StandardCharsets.UTF_8)) {
+            counts.merge(word, 1, Integer::sum);
+        }
+        // Rank words by frequency, breaking ties by the word so every run generates the same corpus
+        this.words = counts.keySet().toArray(new String[0]);
+        Arrays.sort(this.words, (a, b) -> counts.get(a).equals(counts.get(b))
+                                          ? a.compareTo(b)
+                                          : Integer.compare(counts.get(b), counts.get(a)));
+        this.cumulative = new double[this.words.length];
+        double sum = 0;
+        for (int rank = 0; rank < this.words.length; rank++) {
+            sum += 1.0 / (rank + 1);
+            this.cumulative[rank] = sum;
+        }
+    }
+
+    /**
+     * Returns the project root, which is the directory given by the {@code se1.root} system property, or else the
+     * current directory or its parent, whichever contains the docs directory.
+     *
+     * @return The project root.
+     */
+    public static Path projectRoot() {
+        String property = System.getProperty("se1.root");
+        if (property != null) {
+            return Paths.get(property);
+        }
+        Path current = Paths.get("").toAbsolutePath();
+        return Files.isDirectory(current.resolve("docs")) ? current : current.getParent();
+    }
+
+    /**
+     * Returns the stop words file of the project.
+     *
+     * @return The path of the stop words file.
+     */
+    public Path stopWords() {
+        return this.root.resolve("stopwords.txt");
+    }
+
+    /**
+     * Returns a directory which contains the given number of generated documents, generating them if a previous run
+     * has not done so already.
+     *
+     * @param docs The number of documents.
+     * @return The directory of the corpus.
+     * @throws IOException If the corpus cannot be written.
+     */
+    public Path corpus(int docs) throws IOException {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "se1-corpus-" + docs);
+        Path complete = dir.resolve(".complete");
+        if (Files.exists(complete)) {
+            return dir;
+        }
+        Files.createDirectories(dir);
+        Random random = new Random(docs);
+        for (int i = 0; i < docs; i++) {
+            Path file = dir.resolve(String.format("%07d.txt", i));
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write(this.document(random));
+            }
+        }
+        Files.createFile(complete);
+        return dir;
+    }
+
+    /**
+     * Generates the given number of documents in memory.
+     *
+     * @param docs The number of documents.
+     * @param seed The seed of the random generator.
+     * @return The raw text of the documents.
+     */
+    public String[] contents(int docs, long seed) {
+        Random random = new Random(seed);
+        String[] contents = new String[docs];
+        for (int i = 0; i < docs; i++) {
+            contents[i] = this.document(random);
+        }
+        return contents;
+    }
+
+    /**
+     * Generates a search phrase of the given number of keywords, drawn from the most frequent half of the vocabulary
+     * so the query actually matches documents. Stop words are skipped, so the stop words must be loaded first.
+     *
+     * @param words The number of words.
+     * @param seed  The seed of the random generator.
+     * @return The search phrase.
+     */
+    public String phrase(int words, long seed) {
+        Random random = new Random(seed);
+        StringJoiner phrase = new StringJoiner(" ");
+        int count = 0;
+        while (count < words) {
+            String word = this.words[random.nextInt(this.words.length / 2)];
+            if (Word.createWord(word).isKeyword()) {
+                phrase.add(word);
+                count++;
+            }
+        }
+        return phrase.toString();
+    }
+
+    /**
+     * Returns the raw words of the vocabulary, from the most to the least frequent.
+     *
+     * @return The raw words.
+     */
+    public List<String> vocabulary() {
+        return new ArrayList<>(Arrays.asList(this.words));
+    }
+
+    /**
+     * Generates the raw text of one document: a title line and a body line.
+     *
+     * @param random The random generator.
+     * @return The raw text of the document.
+     */
+    private String document(Random random) {
+        StringBuilder sb = new StringBuilder();
+        this.appendWords(sb, random, MIN_TITLE_WORDS + random.nextInt(MAX_TITLE_WORDS - MIN_TITLE_WORDS + 1));
+        sb.append('\n');
+        this.appendWords(sb, random, MIN_BODY_WORDS + random.nextInt(MAX_BODY_WORDS - MIN_BODY_WORDS + 1));
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Appends the given number of random words separated by spaces.
+     *
+     * @param sb     The builder to append to.
+     * @param random The random generator.
+     * @param count  The number of words.
+     */
+    private void appendWords(StringBuilder sb, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(this.nextWord(random));
+        }
+    }
+
+    /**
+     * Draws a word with a Zipf distribution over its rank.
+     *
+     * @param random The random generator.
+     * @return The raw word.
+     */
+    private String nextWord(Random random) {
+        double target = random.nextDouble() * this.cumulative[this.cumulative.length - 1];
+        int rank = Arrays.binarySearch(this.cumulative, target);
+        return this.words[rank >= 0 ? rank : Math.min(-rank - 1, this.words.length - 1)];
+    }
+}
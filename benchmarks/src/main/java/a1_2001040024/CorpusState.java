@@ -0,0 +1,73 @@
+package a1_2001040024;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A search engine loaded with a generated corpus, shared by the benchmarks of one trial. An engine holds about 7 KB of
+ * heap per generated document, so the benchmarks which use this state fork with a 2 GB heap, which fits the 10,000 and
+ * 100,000 document corpora they run on by default.
+ * <p>
+ * The 1,000,000 document corpus needs about 7 GB of heap, so it is opt-in: run the benchmarks with
+ * {@code -p docs=1000000 -jvmArgsAppend -Xmx10g}, which replaces the heap of the fork as well.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+    /**
+     * The heap an engine holds per generated document, in bytes, with some room for loading.
+     */
+    private static final long HEAP_PER_DOC = 9 * 1024;
+
+    @Param({"10000", "100000"})
+    public int docs;
+
+    @Param({"2", "24"})
+    public int keywords;
+
+    public CorpusGenerator generator;
+    public Engine engine;
+    public Query query;
+    public List<Result> results;
+
+    /**
+     * Generates the corpus if needed, loads it into a new engine and prepares the query.
+     *
+     * @throws IOException           If the corpus cannot be generated.
+     * @throws IllegalStateException If the heap of the fork is too small for the corpus.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        long heap = (long) this.docs * HEAP_PER_DOC;
+        if (Runtime.getRuntime().maxMemory() < heap) {
+            // Fail before generating and loading the corpus rather than running out of memory halfway, and suggest
+            // the next whole gigabyte with one to spare
+            throw new IllegalStateException(String.format(Locale.ROOT, "%d documents need a heap of about %d MB,"
+                                                                       + " run with -jvmArgsAppend -Xmx%dg",
+                                                          this.docs, heap >> 20, (heap >> 30) + 2));
+        }
+        this.generator = new CorpusGenerator(CorpusGenerator.projectRoot());
+        Path corpus = this.generator.corpus(this.docs);
+        Word.loadStopWords(this.generator.stopWords().toString());
+        this.engine = new Engine();
+        this.engine.loadDocs(corpus.toString(), Runtime.getRuntime().availableProcessors());
+        this.configure(this.engine);
+        this.query = new Query(this.generator.phrase(this.keywords, 42));
+        this.results = this.engine.search(this.query);
+    }
+
+    /**
+     * Configures the loaded engine before the query is run. Subclasses override this instead of adding their own
+     * setup method, which JMH would run separately from this one.
+     *
+     * @param engine The loaded engine.
+     */
+    protected void configure(Engine engine) {
+    }
+}
@@ -0,0 +1,198 @@
+package a1_2001040024;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of reading a compressed postings list against reading the same entries from plain int arrays: decoding
+ * every entry in order, every position, and skipping to a sparse set of documents. The memory footprint of both is
+ * printed during the setup of every trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostingsBenchmark {
+    private static final int ENTRIES = 1000000;
+    private static final int TARGETS = 10000;
+
+    @Param({"32", "128", "512"})
+    public int blockSize;
+
+    @Param({"2", "64"})
+    public int averageGap;
+
+    private int[] docIds;
+    private int[] freqs;
+    private int[] firstPositions;
+    private int[] positions;
+    private int[] targets;
+    private InvertedIndex.Postings postings;
+
+    /**
+     * Generates the entries of a postings list, compresses them and picks the documents to skip to.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        this.docIds = new int[ENTRIES];
+        this.freqs = new int[ENTRIES];
+        this.firstPositions = new int[ENTRIES];
+        this.positions = new int[16 * ENTRIES];
+        int positionCount = 0;
+        int docId = -1;
+        for (int i = 0; i < ENTRIES; i++) {
+            docId += 1 + random.nextInt(2 * this.averageGap - 1);
+            this.docIds[i] = docId;
+            // Most terms occur a few times, and first in the body rather than the title
+            this.freqs[i] = 1 + random.nextInt(1 + random.nextInt(16));
+            this.firstPositions[i] = random.nextInt(random.nextBoolean() ? 16 : 2000);
+            int position = this.firstPositions[i];
+            for (int n = 0; n < this.freqs[i]; n++) {
+                this.positions[positionCount++] = position;
+                position += 1 + random.nextInt(200);
+            }
+        }
+        this.positions = Arrays.copyOf(this.positions, positionCount);
+        this.postings = InvertedIndex.Postings.of(this.blockSize, this.docIds, this.freqs, this.positions, ENTRIES);
+        this.targets = new int[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            this.targets[i] = random.nextInt(docId + 1);
+        }
+        Arrays.sort(this.targets);
+        System.out.printf("%n%d entries with %d positions: %d bytes compressed, %d bytes as arrays%n", ENTRIES,
+                          this.positions.length, this.postings.memoryBytes(),
+                          12L * ENTRIES + 4L * this.positions.length);
+    }
+
+    /**
+     * Reads every entry from the plain arrays.
+     *
+     * @return A checksum of the entries.
+     */
+    @Benchmark
+    public long readArrays() {
+        long sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            sum += this.docIds[i] + this.freqs[i] + this.firstPositions[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Reads every entry from the compressed postings list, decoding it block by block.
+     *
+     * @return A checksum of the entries.
+     */
+    @Benchmark
+    public long readCompressed() {
+        InvertedIndex.Postings.Reader reader = this.postings.reader();
+        long sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            sum += reader.docId(i) + reader.freq(i) + reader.firstPosition(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Reads only the document ids from the compressed postings list, as a search does for a list it only probes.
+     *
+     * @return A checksum of the document ids.
+     */
+    @Benchmark
+    public long readCompressedDocIds() {
+        InvertedIndex.Postings.Reader reader = this.postings.reader();
+        long sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            sum += reader.docId(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Reads every position of every entry from the plain arrays.
+     *
+     * @return A checksum of the positions.
+     */
+    @Benchmark
+    public long readPositionsArrays() {
+        long sum = 0;
+        for (int position : this.positions) {
+            sum += position;
+        }
+        return sum;
+    }
+
+    /**
+     * Reads every position of every entry from the compressed postings list, as a phrase query does for the documents
+     * it checks.
+     *
+     * @return A checksum of the positions.
+     */
+    @Benchmark
+    public long readPositionsCompressed() {
+        InvertedIndex.Postings.Reader reader = this.postings.reader();
+        int[] target = new int[this.postings.maxFreq()];
+        long sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            int freq = reader.positions(i, target);
+            for (int n = 0; n < freq; n++) {
+                sum += target[n];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Skips to every target document in the plain arrays with a binary search from the current entry.
+     *
+     * @return A checksum of the found entries.
+     */
+    @Benchmark
+    public long advanceArrays() {
+        long sum = 0;
+        int cursor = 0;
+        for (int target : this.targets) {
+            int entry = Arrays.binarySearch(this.docIds, cursor, ENTRIES, target);
+            cursor = entry >= 0 ? entry : -entry - 1;
+            if (cursor < ENTRIES) {
+                sum += this.freqs[cursor];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Skips to every target document in the compressed postings list with its skip pointers.
+     *
+     * @return A checksum of the found entries.
+     */
+    @Benchmark
+    public long advanceCompressed() {
+        InvertedIndex.Postings.Reader reader = this.postings.reader();
+        long sum = 0;
+        int cursor = 0;
+        for (int target : this.targets) {
+            cursor = reader.advance(cursor, target);
+            if (cursor < ENTRIES) {
+                sum += reader.freq(cursor);
+            }
+        }
+        return sum;
+    }
+}
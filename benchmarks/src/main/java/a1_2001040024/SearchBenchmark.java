@@ -0,0 +1,86 @@
+package a1_2001040024;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of matching, searching, ranking and HTML rendering against a generated corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SearchBenchmark {
+    /**
+     * Matches the query against every document, the way search worked before the inverted index.
+     *
+     * @param state The loaded corpus.
+     * @param bh    The blackhole.
+     */
+    @Benchmark
+    public void matchAgainst(CorpusState state, Blackhole bh) {
+        for (Doc doc : state.engine.getDocs()) {
+            bh.consume(state.query.matchAgainst(doc));
+        }
+    }
+
+    /**
+     * Searches the corpus for the query.
+     *
+     * @param state The loaded corpus.
+     * @return The results.
+     */
+    @Benchmark
+    public List<Result> search(CorpusState state) {
+        return state.engine.search(state.query);
+    }
+
+    /**
+     * Searches the corpus for the first page of ten results.
+     *
+     * @param state The loaded corpus.
+     * @return The results.
+     */
+    @Benchmark
+    public List<Result> searchTopTen(CorpusState state) {
+        return state.engine.search(state.query, 10);
+    }
+
+    /**
+     * Sorts the results of the query, starting from a shuffled copy.
+     *
+     * @param state The loaded corpus.
+     * @return The sorted results.
+     */
+    @Benchmark
+    public List<Result> sortResults(CorpusState state) {
+        List<Result> results = new ArrayList<>(state.results);
+        Collections.shuffle(results, new Random(42));
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * Renders the results of the query as HTML.
+     *
+     * @param state The loaded corpus.
+     * @return The HTML.
+     */
+    @Benchmark
+    public String htmlResult(CorpusState state) {
+        return state.engine.htmlResult(state.results);
+    }
+}
@@ -0,0 +1,68 @@
+package a1_2001040024;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of searching with the documents split into shards which are evaluated in parallel. Running it over the
+ * shard counts gives the speedup curve of one query on the cores of the machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ShardBenchmark {
+    /**
+     * A loaded corpus whose engine splits searches into the given number of shards.
+     */
+    @State(Scope.Benchmark)
+    public static class ShardState extends CorpusState {
+        @Param({"1", "2", "4", "8", "16"})
+        public int shards;
+
+        /**
+         * Sets the number of shards of the loaded engine.
+         *
+         * @param engine The loaded engine.
+         */
+        @Override
+        protected void configure(Engine engine) {
+            engine.setSearchShards(this.shards, ForkJoinPool.commonPool());
+        }
+    }
+
+    /**
+     * Searches the corpus for the query.
+     *
+     * @param state The loaded corpus.
+     * @return The results.
+     */
+    @Benchmark
+    public List<Result> search(ShardState state) {
+        return state.engine.search(state.query);
+    }
+
+    /**
+     * Searches the corpus for the first page of ten results.
+     *
+     * @param state The loaded corpus.
+     * @return The results.
+     */
+    @Benchmark
+    public List<Result> searchTopTen(ShardState state) {
+        return state.engine.search(state.query, 10);
+    }
+}
@@ -0,0 +1,97 @@
+package a1_2001040024;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of tokenizing words and documents, and of the Word methods used while matching and rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizeBenchmark {
+    private static final int DOCS = 1000;
+
+    private String[] tokens;
+    private String[] contents;
+    private Word[] words;
+
+    /**
+     * Generates the documents and splits them into raw words.
+     *
+     * @throws IOException If the vocabulary cannot be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(CorpusGenerator.projectRoot());
+        Word.loadStopWords(generator.stopWords().toString());
+        this.contents = generator.contents(DOCS, 42);
+        this.tokens = String.join(" ", this.contents).split("\\s+");
+        List<String> vocabulary = generator.vocabulary();
+        this.words = vocabulary.stream().map(Word::createWord).toArray(Word[]::new);
+    }
+
+    /**
+     * Creates a Word from every raw word of the documents.
+     *
+     * @param bh The blackhole.
+     */
+    @Benchmark
+    public void createWord(Blackhole bh) {
+        for (String token : this.tokens) {
+            bh.consume(Word.createWord(token));
+        }
+    }
+
+    /**
+     * Parses every document.
+     *
+     * @param bh The blackhole.
+     */
+    @Benchmark
+    public void newDoc(Blackhole bh) {
+        for (String content : this.contents) {
+            bh.consume(new Doc(content));
+        }
+    }
+
+    /**
+     * Checks every word of the vocabulary against the stop words.
+     *
+     * @param bh The blackhole.
+     */
+    @Benchmark
+    public void isKeyword(Blackhole bh) {
+        for (Word word : this.words) {
+            bh.consume(word.isKeyword());
+        }
+    }
+
+    /**
+     * Hashes every word of the vocabulary.
+     *
+     * @param bh The blackhole.
+     */
+    @Benchmark
+    public void wordHashCode(Blackhole bh) {
+        for (Word word : this.words) {
+            bh.consume(word.hashCode());
+        }
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 import a1_2001040024.Doc;
 import a1_2001040024.Engine;
@@ -172,7 +174,8 @@ public class Main {
                     + "' (expected '[Design, patterns]'");
         }
         // Testing HTML highlights
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader("testCases.html"))) {
+        try (BufferedReader bufferedReader = Files.newBufferedReader(Paths.get("testCases.html"),
+                                                                     StandardCharsets.UTF_8)) {
             String firstResultHTML = bufferedReader.readLine();
             if (!firstResultHTML.equals(results.get(0).htmlHighlight().trim())) {
                 System.out.println("Result.htmlHighlight(): incorrect output for first result");
@@ -0,0 +1,129 @@
+package a1_2001040024;
+
+/**
+ * The ranking of a document for a query, computed from the postings lists without building Match and Result objects.
+ * Candidates are ordered the same way as {@link Result#compareTo(Result)}, then by document id, which is the order a
+ * stable sort of the results gives.
+ */
+class Candidate implements Comparable<Candidate> {
+    private int docId;
+    private int matchCount;
+    private int totalFrequency;
+    private long firstIndexSum;
+
+    /**
+     * Starts the ranking of another document.
+     *
+     * @param docId The id of the document.
+     */
+    void reset(int docId) {
+        this.docId = docId;
+        this.matchCount = 0;
+        this.totalFrequency = 0;
+        this.firstIndexSum = 0;
+    }
+
+    /**
+     * Adds a match of one keyword to the ranking.
+     *
+     * @param freq       The frequency of the keyword in the document.
+     * @param firstIndex The first index of the keyword in the document.
+     */
+    void add(int freq, int firstIndex) {
+        this.matchCount++;
+        this.totalFrequency += freq;
+        this.firstIndexSum += firstIndex;
+    }
+
+    /**
+     * Returns the id of the document.
+     *
+     * @return The id of the document.
+     */
+    int getDocId() {
+        return this.docId;
+    }
+
+    /**
+     * Returns the number of matches.
+     *
+     * @return The number of matches.
+     */
+    int getMatchCount() {
+        return this.matchCount;
+    }
+
+    /**
+     * Returns the sum of all frequencies of the matches.
+     *
+     * @return The total frequency.
+     */
+    int getTotalFrequency() {
+        return this.totalFrequency;
+    }
+
+    /**
+     * Returns the average of the first indexes of the matches, computed the same way as in Result.
+     *
+     * @return The average first index.
+     */
+    double getAverageFirstIndex() {
+        return this.matchCount == 0 ? 0.0 : (double) this.firstIndexSum / this.matchCount;
+    }
+
+    /**
+     * Returns whether this candidate could still be sorted before the given one if it gets at most the given number of
+     * further matches, with at most the given further frequency and at least the given further first index sum.
+     *
+     * @param threshold         The candidate to beat, whose document id is smaller than the id of this one.
+     * @param moreMatches       The maximum number of further matches.
+     * @param moreFrequency     The maximum sum of the frequencies of the further matches.
+     * @param moreFirstIndexSum The minimum sum of the first indexes of the further matches.
+     * @return False if this candidate will be sorted after the given one.
+     */
+    boolean canBeat(Candidate threshold, int moreMatches, long moreFrequency, long moreFirstIndexSum) {
+        return Candidate.canBeat(this.matchCount + moreMatches, this.totalFrequency + moreFrequency,
+                                 this.firstIndexSum + moreFirstIndexSum, threshold);
+    }
+
+    /**
+     * Returns whether a document with at most the given match count and total frequency, and at least the given first
+     * index sum at that match count, could be sorted before the given candidate. Since the document comes after the
+     * candidate, it has to be strictly better to beat it.
+     *
+     * @param matchCount     The maximum number of matches.
+     * @param totalFrequency The maximum total frequency.
+     * @param firstIndexSum  The minimum sum of the first indexes.
+     * @param threshold      The candidate to beat.
+     * @return False if every such document will be sorted after the candidate.
+     */
+    static boolean canBeat(int matchCount, long totalFrequency, long firstIndexSum, Candidate threshold) {
+        if (matchCount != threshold.matchCount) {
+            return matchCount > threshold.matchCount;
+        }
+        if (totalFrequency != threshold.totalFrequency) {
+            return totalFrequency > threshold.totalFrequency;
+        }
+        return (double) firstIndexSum / matchCount < threshold.getAverageFirstIndex();
+    }
+
+    /**
+     * Compares this candidate with another one. A candidate is less than another one if its result would be sorted
+     * before the other's.
+     *
+     * @param o The other candidate.
+     * @return A negative integer, zero, or a positive integer as this candidate is less than, equal to, or greater
+     * than the specified candidate.
+     */
+    @Override
+    public int compareTo(Candidate o) {
+        if (this.matchCount != o.matchCount) {
+            return Integer.compare(o.matchCount, this.matchCount);
+        }
+        if (this.totalFrequency != o.totalFrequency) {
+            return Integer.compare(o.totalFrequency, this.totalFrequency);
+        }
+        int byIndex = Double.compare(this.getAverageFirstIndex(), o.getAverageFirstIndex());
+        return byIndex != 0 ? byIndex : Integer.compare(this.docId, o.docId);
+    }
+}
@@ -1,17 +1,38 @@
 package a1_2001040024;
 
-import java.util.ArrayList;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.RandomAccess;
 
 /**
  * Represents a document which has a title and a body. The title and body of a document are lists of Word objects.
+ * <p>
+ * To keep large corpora in memory, a document does not store Word objects. It keeps the raw title and body lines and,
+ * for every word, its term id, a flag byte and the offsets of its text part in the raw line. Word objects are only
+ * built when the title or body is read.
  */
 public class Doc {
-    private final List<Word> title;
-    private final List<Word> body;
+    /**
+     * Flag of a valid word.
+     */
+    private static final byte VALID = 1;
+    /**
+     * Flag of a word whose text part is not found in the raw text, which is rebuilt by scanning it again.
+     */
+    private static final byte SCATTERED = 2;
+
+    private final String titleLine;
+    private final String bodyLine;
+    private final int titleLength;
+    private final int[] terms;
+    private final byte[] flags;
+    private final int[] starts;
+    private final int[] textStarts;
+    private final int[] textEnds;
 
     /**
      * A constructor which receives the raw text of a document and extracts the title and body parts from that.
@@ -21,26 +42,338 @@ public class Doc {
      * @param content the raw text of a document
      */
     public Doc(String content) {
-        String[] lines = content.split("\\R");
-        this.title = this.generateWordList(lines, 0);
-        this.body = this.generateWordList(lines, 1);
+        this((CharSequence) content);
+    }
+
+    /**
+     * Constructs a document from raw text which is tokenized in place, without splitting it into line strings first.
+     * Lines are separated the same way as {@code String.split("\\R")} and words the same way as {@code
+     * String.split(" ")}, so the result is the same as {@link #Doc(String)}.
+     *
+     * @param content the raw text of a document
+     */
+    Doc(CharSequence content) {
+        int length = content.length();
+        int titleEnd = Doc.lineEnd(content, 0);
+        int bodyStart = Doc.nextLine(content, titleEnd);
+        int bodyEnd = Doc.lineEnd(content, bodyStart);
+        // Without any line terminator the whole content is the title, even if it is empty. Otherwise trailing empty
+        // lines are dropped, so a line only exists if some text comes at or after it.
+        int titleWordsEnd = titleEnd == length || Doc.hasText(content, 0) ? Doc.wordsEnd(content, 0, titleEnd) : -1;
+        int bodyWordsEnd = titleEnd < length && Doc.hasText(content, bodyStart)
+                           ? Doc.wordsEnd(content, bodyStart, bodyEnd)
+                           : -1;
+        this.titleLine = titleWordsEnd < 0 ? "" : content.subSequence(0, titleWordsEnd).toString();
+        this.bodyLine = bodyWordsEnd < 0 ? "" : content.subSequence(bodyStart, bodyWordsEnd).toString();
+        this.titleLength = titleWordsEnd < 0 ? 0 : Doc.countWords(this.titleLine);
+        int bodyLength = bodyWordsEnd < 0 ? 0 : Doc.countWords(this.bodyLine);
+        int size = this.titleLength + bodyLength;
+        this.terms = new int[size];
+        this.flags = new byte[size];
+        this.starts = new int[size];
+        this.textStarts = new int[size];
+        this.textEnds = new int[size];
+        this.tokenize(this.titleLine, 0, this.titleLength);
+        this.tokenize(this.bodyLine, this.titleLength, size);
+    }
+
+    /**
+     * Constructs a document from its already tokenized lines and word arrays.
+     *
+     * @param titleLine   the raw title line
+     * @param bodyLine    the raw body line
+     * @param titleLength the number of words in the title
+     * @param terms       the term id of every word
+     * @param flags       the flags of every word
+     * @param starts      the start of every word in its line
+     * @param textStarts  the start of the text part of every word in its line
+     * @param textEnds    the end of the text part of every word in its line
+     */
+    private Doc(String titleLine, String bodyLine, int titleLength, int[] terms, byte[] flags, int[] starts,
+                int[] textStarts, int[] textEnds) {
+        this.titleLine = titleLine;
+        this.bodyLine = bodyLine;
+        this.titleLength = titleLength;
+        this.terms = terms;
+        this.flags = flags;
+        this.starts = starts;
+        this.textStarts = textStarts;
+        this.textEnds = textEnds;
+    }
+
+    /**
+     * Writes the lines and word arrays of the document to a segment file.
+     *
+     * @param out      the output of the segment file
+     * @param localIds the id of every term in the segment's term table, indexed by term id
+     * @throws IOException if the output fails
+     */
+    void write(DataOutput out, int[] localIds) throws IOException {
+        SegmentFile.writeString(out, this.titleLine);
+        SegmentFile.writeString(out, this.bodyLine);
+        out.writeInt(this.titleLength);
+        out.writeInt(this.terms.length);
+        for (int term : this.terms) {
+            out.writeInt(localIds[term]);
+        }
+        out.write(this.flags);
+        SegmentFile.writeInts(out, this.starts);
+        SegmentFile.writeInts(out, this.textStarts);
+        SegmentFile.writeInts(out, this.textEnds);
+    }
+
+    /**
+     * Reads a document written by {@link #write(DataOutput, int[])} from a segment file.
+     *
+     * @param in        the contents of the segment file, positioned at the document
+     * @param globalIds the term id of every term in the segment's term table
+     * @return the document
+     */
+    static Doc read(ByteBuffer in, int[] globalIds) {
+        String titleLine = SegmentFile.readString(in);
+        String bodyLine = SegmentFile.readString(in);
+        int titleLength = in.getInt();
+        int[] terms = SegmentFile.readInts(in, in.getInt());
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = globalIds[terms[i]];
+        }
+        byte[] flags = new byte[terms.length];
+        in.get(flags);
+        int[] starts = SegmentFile.readInts(in, terms.length);
+        int[] textStarts = SegmentFile.readInts(in, terms.length);
+        int[] textEnds = SegmentFile.readInts(in, terms.length);
+        return new Doc(titleLine, bodyLine, titleLength, terms, flags, starts, textStarts, textEnds);
+    }
+
+    /**
+     * Tokenizes a raw line into the word arrays.
+     *
+     * @param line the raw line
+     * @param from the position of the first word of the line
+     * @param to   the position after the last word of the line
+     */
+    private void tokenize(String line, int from, int to) {
+        int[] bounds = new int[2];
+        int wordStart = 0;
+        for (int position = from; position < to; position++) {
+            int wordEnd = position == to - 1 ? line.length() : line.indexOf(' ', wordStart);
+            this.starts[position] = wordStart;
+            this.textStarts[position] = wordStart;
+            this.textEnds[position] = wordEnd;
+            switch (Word.scan(line, wordStart, wordEnd, bounds)) {
+                case Word.VALID:
+                    this.flags[position] = VALID;
+                    this.textStarts[position] = bounds[0];
+                    this.textEnds[position] = bounds[1];
+                    this.terms[position] = TermDictionary.id(line.substring(bounds[0], bounds[1]));
+                    break;
+                case Word.SCATTERED:
+                    Word word = Word.createWord(line, wordStart, wordEnd);
+                    this.flags[position] = word.isValid() ? SCATTERED | VALID : SCATTERED;
+                    this.terms[position] = word.getTermId();
+                    break;
+                default:
+                    this.terms[position] = TermDictionary.id(line.substring(wordStart, wordEnd));
+                    break;
+            }
+            wordStart = wordEnd + 1;
+        }
+    }
+
+    /**
+     * Builds the Word object of the word at the given position, with the title placed before the body.
+     *
+     * @param position the position of the word
+     * @return the Word object
+     */
+    private Word word(int position) {
+        String line = position < this.titleLength ? this.titleLine : this.bodyLine;
+        int start = this.starts[position];
+        int end = this.wordEnd(position);
+        if ((this.flags[position] & SCATTERED) != 0) {
+            return Word.createWord(line, start, end);
+        }
+        if ((this.flags[position] & VALID) == 0) {
+            return new Word("", line.substring(start, end), "", false, this.terms[position]);
+        }
+        return new Word(line.substring(start, this.textStarts[position]),
+                        line.substring(this.textStarts[position], this.textEnds[position]),
+                        line.substring(this.textEnds[position], end),
+                        true,
+                        this.terms[position]);
+    }
+
+    /**
+     * Returns the index after the raw text of the word at the given position in its line.
+     *
+     * @param position the position of the word
+     * @return the end of the raw text of the word
+     */
+    private int wordEnd(int position) {
+        if (position + 1 == this.titleLength || position + 1 == this.terms.length) {
+            return position < this.titleLength ? this.titleLine.length() : this.bodyLine.length();
+        }
+        return this.starts[position + 1] - 1;
+    }
+
+    /**
+     * Writes the title or the body to the given sink, separated by spaces, surrounding the text part of every word
+     * whose term is highlighted with the given tags. The raw line is copied to the sink piece by piece, so no string
+     * is built for a word unless its text part is not found in the raw text.
+     *
+     * @param out         the sink to write to
+     * @param title       true to write the title, false to write the body
+     * @param highlighted the sorted term ids of the words to highlight
+     * @param openTag     the tag to write before a highlighted text part
+     * @param closeTag    the tag to write after a highlighted text part
+     * @throws IOException if the sink fails
+     */
+    void writeWords(Appendable out, boolean title, int[] highlighted, String openTag, String closeTag)
+            throws IOException {
+        String line = title ? this.titleLine : this.bodyLine;
+        int from = title ? 0 : this.titleLength;
+        int to = title ? this.titleLength : this.terms.length;
+        for (int position = from; position < to; position++) {
+            if (position > from) {
+                out.append(' ');
+            }
+            boolean highlight = Arrays.binarySearch(highlighted, this.terms[position]) >= 0;
+            int start = this.starts[position];
+            int end = this.wordEnd(position);
+            if ((this.flags[position] & SCATTERED) != 0) {
+                Word word = this.word(position);
+                if (highlight) {
+                    out.append(word.getPrefix()).append(openTag).append(word.getText()).append(closeTag)
+                       .append(word.getSuffix());
+                } else {
+                    out.append(word.toString());
+                }
+            } else if (!highlight) {
+                out.append(line, start, end);
+            } else if ((this.flags[position] & VALID) == 0) {
+                // An invalid word has empty prefix and suffix
+                out.append(openTag).append(line, start, end).append(closeTag);
+            } else {
+                out.append(line, start, this.textStarts[position])
+                   .append(openTag)
+                   .append(line, this.textStarts[position], this.textEnds[position])
+                   .append(closeTag)
+                   .append(line, this.textEnds[position], end);
+            }
+        }
+    }
+
+    /**
+     * Returns the end of the words of a line. When the line contains a space, trailing empty words are dropped the
+     * same way as {@code String.split(" ")} does.
+     *
+     * @param content the raw text of the document
+     * @param start   the index of the first character of the line
+     * @param end     the index after the last character of the line
+     * @return the index after the last word, or -1 if the line has no words at all
+     */
+    private static int wordsEnd(CharSequence content, int start, int end) {
+        if (Doc.indexOfSpace(content, start, end) < 0) {
+            return end;
+        }
+        int last = end;
+        while (last > start && content.charAt(last - 1) == ' ') {
+            last--;
+        }
+        return last == start ? -1 : last;
+    }
+
+    /**
+     * Counts the words of a line, which are separated by single spaces.
+     *
+     * @param line the raw line
+     * @return the number of words
+     */
+    private static int countWords(String line) {
+        int count = 1;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == ' ') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the first space in the given range, or -1 if there is none.
+     *
+     * @param content the raw text of the document
+     * @param start   the start of the range, inclusive
+     * @param end     the end of the range, exclusive
+     * @return the index of the first space, or -1 if there is none
+     */
+    private static int indexOfSpace(CharSequence content, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (content.charAt(i) == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the line terminator which ends the line starting at the given index, or the length of the
+     * content if the line is the last one.
+     *
+     * @param content the raw text of the document
+     * @param start   the index of the first character of the line
+     * @return the index where the line ends
+     */
+    private static int lineEnd(CharSequence content, int start) {
+        int i = start;
+        while (i < content.length() && !Doc.isLineTerminator(content.charAt(i))) {
+            i++;
+        }
+        return i;
     }
 
     /**
-     * Generates a list of Word objects from the lines array at the specified index.
+     * Returns the index of the first character after the line terminator at the given index.
      *
-     * @param lines the array of lines
-     * @param index the index of the line to process
-     * @return a list of Word objects extracted from the line at the specified index
+     * @param content the raw text of the document
+     * @param end     the index of the line terminator, or the length of the content
+     * @return the index where the next line starts
      */
-    private List<Word> generateWordList(String[] lines, int index) {
-        // If the line to read exist (the index is less than the number of lines)
-        if (lines.length > index) {
-            // Create and return a List of Word objects by splitting the line
-            return Arrays.stream(lines[index].split(" ")).map(Word::createWord).collect(Collectors.toList());
+    private static int nextLine(CharSequence content, int end) {
+        if (end == content.length()) {
+            return end;
         }
-        // Return an empty ArrayList
-        return new ArrayList<>();
+        if (content.charAt(end) == '\r' && end + 1 < content.length() && content.charAt(end + 1) == '\n') {
+            return end + 2;
+        }
+        return end + 1;
+    }
+
+    /**
+     * Determines if there is any character other than a line terminator at or after the given index.
+     *
+     * @param content the raw text of the document
+     * @param start   the index to start from
+     * @return true if some text is found, false otherwise
+     */
+    private static boolean hasText(CharSequence content, int start) {
+        for (int i = start; i < content.length(); i++) {
+            if (!Doc.isLineTerminator(content.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the given character is a line terminator matched by {@code \R}.
+     *
+     * @param c the character
+     * @return true if the character is a line terminator, false otherwise
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\u000B' || c == '\f' || c == '\r' || c == '\u0085' || c == '\u2028' ||
+               c == '\u2029';
     }
 
     /**
@@ -49,7 +382,7 @@ public class Doc {
      * @return the document’s title as a list of Word objects
      */
     public List<Word> getTitle() {
-        return this.title;
+        return new WordList(0, this.titleLength);
     }
 
     /**
@@ -58,7 +391,25 @@ public class Doc {
      * @return the document’s body as a list of Word objects
      */
     public List<Word> getBody() {
-        return this.body;
+        return new WordList(this.titleLength, this.terms.length);
+    }
+
+    /**
+     * Returns the term ids of the document's words, with the title placed before the body.
+     *
+     * @return the term ids of the document's words
+     */
+    int[] getTerms() {
+        return this.terms;
+    }
+
+    /**
+     * Returns the number of words in the document's title.
+     *
+     * @return the number of words in the title
+     */
+    int getTitleLength() {
+        return this.titleLength;
     }
 
     /**
@@ -68,7 +419,7 @@ public class Doc {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(this.title, this.body);
+        return 31 * Arrays.hashCode(this.terms) + this.getTitleLength();
     }
 
     /**
@@ -88,6 +439,38 @@ public class Doc {
         }
         Doc doc;
         doc = (Doc) o;
-        return this.title.equals(doc.title) && this.body.equals(doc.body);
+        return this.getTitleLength() == doc.getTitleLength() && Arrays.equals(this.terms, doc.terms);
+    }
+
+    /**
+     * A read-only view of the words between two positions, which builds each Word object when it is read.
+     */
+    private class WordList extends AbstractList<Word> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructs a view of the words between two positions.
+         *
+         * @param from the position of the first word, inclusive
+         * @param to   the position of the last word, exclusive
+         */
+        WordList(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Word get(int index) {
+            if (index < 0 || index >= this.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size());
+            }
+            return Doc.this.word(this.from + index);
+        }
+
+        @Override
+        public int size() {
+            return this.to - this.from;
+        }
     }
 }
@@ -0,0 +1,99 @@
+package a1_2001040024;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads documents from UTF-8 text files. Large files are memory-mapped and small files are read into a reusable buffer,
+ * then the bytes are decoded into a reusable character buffer which the Doc is tokenized from, so no String holding the
+ * whole content is ever built. Every thread has its own buffers, so documents can be read concurrently.
+ */
+class DocReader {
+    /**
+     * Files of at least this many bytes are memory-mapped; mapping a smaller file costs more than reading it.
+     */
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    private static final ThreadLocal<DocReader> READERS = ThreadLocal.withInitial(DocReader::new);
+
+    private final CharsetDecoder decoder;
+    private ByteBuffer bytes;
+    private CharBuffer chars;
+
+    /**
+     * Constructs a reader with empty buffers.
+     */
+    private DocReader() {
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                                             .onMalformedInput(CodingErrorAction.REPLACE)
+                                             .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocateDirect(MAP_THRESHOLD);
+        this.chars = CharBuffer.allocate(MAP_THRESHOLD);
+    }
+
+    /**
+     * Reads and parses the document stored in the given file.
+     *
+     * @param path The path of the file.
+     * @return The document.
+     * @throws IOException If the file cannot be read.
+     */
+    static Doc read(Path path) throws IOException {
+        return READERS.get().readDoc(path);
+    }
+
+    /**
+     * Reads and parses the document stored in the given file using the buffers of this reader.
+     *
+     * @param path The path of the file.
+     * @return The document.
+     * @throws IOException If the file cannot be read.
+     */
+    private Doc readDoc(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + path);
+            }
+            ByteBuffer input;
+            if (size >= MAP_THRESHOLD) {
+                input = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                this.bytes.clear();
+                while (this.bytes.hasRemaining() && channel.read(this.bytes) >= 0) {
+                    // Keep reading until the end of the file
+                }
+                this.bytes.flip();
+                input = this.bytes;
+            }
+            return new Doc(this.decode(input));
+        }
+    }
+
+    /**
+     * Decodes the given UTF-8 bytes into the character buffer of this reader, replacing malformed input the same way
+     * {@code new String(bytes)} does.
+     *
+     * @param input The bytes to decode.
+     * @return The decoded characters, valid until the next call on this thread.
+     */
+    private CharBuffer decode(ByteBuffer input) {
+        // UTF-8 never decodes to more chars than bytes
+        if (this.chars.capacity() < input.remaining()) {
+            this.chars = CharBuffer.allocate(input.remaining());
+        }
+        this.chars.clear();
+        this.decoder.reset();
+        this.decoder.decode(input, this.chars, true);
+        this.decoder.flush(this.chars);
+        this.chars.flip();
+        return this.chars;
+    }
+}
@@ -0,0 +1,195 @@
+package a1_2001040024;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an engine in sync with a directory of documents. The watcher loads the directory once and then listens for
+ * files being created, modified or deleted. Events are collected into a batch until the directory has been quiet for
+ * the debounce delay, so a file written in several steps or a burst of many files is applied once. A batch is never
+ * held back for more than {@link #MAX_DELAY_FACTOR} debounce delays, so a directory which never stays quiet is still
+ * applied regularly. Every batch is applied in the background as one {@link Engine#syncDocs(java.util.Collection)}
+ * call, so a search sees either none or all of it.
+ */
+public class DocWatcher implements Closeable {
+    /**
+     * A batch is applied at the latest this many debounce delays after its first event.
+     */
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    private final Engine engine;
+    private final String dirname;
+    private final Path dir;
+    private final long debounceNanos;
+    private final WatchService service;
+    private final Thread thread;
+
+    /**
+     * Constructs a watcher and registers the directory with the file system. No event is missed from this point on,
+     * but nothing is loaded or applied until {@link #start()} is called.
+     *
+     * @param engine         The engine to keep in sync.
+     * @param dirname        The name of the directory.
+     * @param debounceMillis The time the directory must be quiet before a batch is applied, in milliseconds.
+     * @throws IOException If the directory cannot be watched.
+     */
+    public DocWatcher(Engine engine, String dirname, long debounceMillis) throws IOException {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("debounceMillis must not be negative: " + debounceMillis);
+        }
+        this.engine = engine;
+        this.dirname = dirname;
+        this.dir = Paths.get(dirname);
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.service = FileSystems.getDefault().newWatchService();
+        try {
+            this.dir.register(this.service, StandardWatchEventKinds.ENTRY_CREATE,
+                              StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            this.service.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "DocWatcher-" + dirname);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Loads the documents of the directory into the engine and starts applying the changes in the background.
+     * Changes made while the documents are loaded are applied afterwards.
+     *
+     * @return The number of documents loaded.
+     */
+    public int start() {
+        int loaded = this.engine.loadDocs(this.dirname);
+        this.thread.start();
+        return loaded;
+    }
+
+    /**
+     * Stops watching the directory. A batch being applied is finished, but pending events are dropped.
+     */
+    @Override
+    public void close() {
+        try {
+            this.service.close();
+        } catch (IOException e) {
+            // System.out.println("An error occurred while closing the watch service: " + e.getMessage());
+        }
+        if (this.thread.isAlive() && this.thread != Thread.currentThread()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Collects events into batches and applies every batch once the directory is quiet, until the watcher is closed or
+     * the directory is no longer accessible.
+     */
+    private void run() {
+        Set<Path> pending = new LinkedHashSet<>();
+        boolean overflow = false;
+        long firstEvent = 0;
+        long lastEvent = 0;
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty() && !overflow) {
+                    key = this.service.take();
+                } else {
+                    long deadline = Math.min(lastEvent + this.debounceNanos,
+                                             firstEvent + this.debounceNanos * MAX_DELAY_FACTOR);
+                    key = this.service.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                if (key != null) {
+                    long now = System.nanoTime();
+                    if (pending.isEmpty() && !overflow) {
+                        firstEvent = now;
+                    }
+                    lastEvent = now;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, so every file has to be checked again
+                            overflow = true;
+                        } else {
+                            pending.add(this.dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        // The directory was deleted or is no longer accessible
+                        pending.addAll(this.rescan());
+                        this.apply(pending);
+                        return;
+                    }
+                }
+                long now = System.nanoTime();
+                boolean due = now - lastEvent >= this.debounceNanos
+                              || now - firstEvent >= this.debounceNanos * MAX_DELAY_FACTOR;
+                if ((!pending.isEmpty() || overflow) && due) {
+                    if (overflow) {
+                        pending.addAll(this.rescan());
+                        overflow = false;
+                    }
+                    this.apply(pending);
+                    pending.clear();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher was closed
+        }
+    }
+
+    /**
+     * Returns every file which may have changed when events were lost: the text files of the directory and the files
+     * of the documents already in the engine.
+     *
+     * @return The paths of the files to check.
+     */
+    private Set<Path> rescan() {
+        Set<Path> paths = new LinkedHashSet<>();
+        try {
+            paths.addAll(Engine.listDocs(this.dirname));
+        } catch (IOException e) {
+            // System.out.println("An error occurred while listing documents: " + e.getMessage());
+        }
+        Path parent = this.dir.toAbsolutePath().normalize();
+        for (Path path : this.engine.getPaths()) {
+            if (parent.equals(path.getParent())) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Applies a batch of changed files to the engine. Only text files directly in the directory are documents.
+     *
+     * @param paths The paths of the changed files.
+     */
+    private void apply(Set<Path> paths) {
+        List<String> docs = new ArrayList<>();
+        for (Path path : paths) {
+            if (path.toString().endsWith(".txt")) {
+                docs.add(path.toString());
+            }
+        }
+        if (!docs.isEmpty()) {
+            this.engine.syncDocs(docs);
+        }
+    }
+}
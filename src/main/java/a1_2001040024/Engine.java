@@ -1,29 +1,102 @@
 package a1_2001040024;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * This class represents the search engine.
+ * <p>
+ * Every document is keyed by the path of its source file. Loading a directory appends its documents every time, even
+ * when some of them were loaded before, while adding, updating and removing the document of a file acts on all of the
+ * documents loaded from it, so a file has at most one document after it is updated. Removing or updating a document
+ * only marks its old id as deleted, and deleted ids are skipped by the searches until enough of them pile up to be
+ * worth compacting the list of documents and the index.
+ * <p>
+ * The engine can be searched from many threads while it is changed. Searches never lock: every change builds the
+ * next snapshot of the documents, their index and the deleted ids, and publishes it in one volatile write. A search
+ * runs against the snapshot published when it starts, so it sees the documents either before or after each change,
+ * and never a change in progress. Changes are made one at a time.
  */
 public class Engine {
-    private final List<Doc> docs;
+    /**
+     * The engine compacts once at least this share of its document ids are deleted.
+     */
+    private static final double MAX_DELETED_RATIO = 0.5;
+
+    /**
+     * A search is only split into shards of at least this many document ids.
+     */
+    private static final int MIN_SHARD_DOCS = 1024;
+
+    private final Object lock;
+    private final int postingsBlockSize;
+    private final Map<Path, int[]> ids;
+    private final BitSet deleted;
+    private int liveCount;
+    private boolean deletedChanged;
+    private Doc[] docs;
+    private int docCount;
+    private InvertedIndex index;
+    private volatile Snapshot snapshot;
+    private volatile int searchShards;
+    private volatile ExecutorService searchExecutor;
+    private volatile QueryCache queryCache;
+    private volatile HtmlCache htmlCache;
+    private volatile Metrics metrics;
+    private volatile SlowQueryLog slowQueryLog;
 
     /**
      * Constructs an Engine with an empty list of documents.
      */
     public Engine() {
-        this.docs = new ArrayList<>();
+        this(InvertedIndex.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructs an Engine with an empty list of documents, whose index compresses its postings lists in blocks of the
+     * given size. Larger blocks compress a little better, smaller ones decode less to find one document.
+     *
+     * @param postingsBlockSize The number of entries in a compressed block of a postings list.
+     */
+    public Engine(int postingsBlockSize) {
+        this.lock = new Object();
+        this.postingsBlockSize = postingsBlockSize;
+        this.ids = new HashMap<>();
+        this.deleted = new BitSet();
+        this.docs = new Doc[16];
+        this.index = new InvertedIndex(postingsBlockSize);
+        this.snapshot = new Snapshot(0, this.docs, 0, this.index, new BitSet(), 0);
+        this.searchShards = 1;
+        this.searchExecutor = ForkJoinPool.commonPool();
     }
 
     /**
-     * Loads the documents from the specified directory and returns the number of documents loaded.
+     * Loads the documents from the specified directory and returns the number of documents loaded. The documents are
+     * read first and then added as one change, so searches see either none or all of them.
      *
      * @param dirname The name of the directory.
      * @return The number of documents loaded.
@@ -32,12 +105,14 @@ public class Engine {
         if (dirname.isEmpty()) {
             return 0;
         }
-        try (Stream<Path> paths = Files.list(Paths.get(dirname))) {
-            paths.filter(Files::isRegularFile)
-                 .sorted()
-                 .filter(path -> path.toString().endsWith(".txt"))
-                 .forEach(this::addDoc);
-            return this.docs.size();
+        try {
+            List<Path> paths = Engine.listDocs(dirname);
+            List<Doc> docs = new ArrayList<>(paths.size());
+            for (Path path : paths) {
+                docs.add(Engine.readDoc(path));
+            }
+            this.load(paths, docs);
+            return this.size();
         } catch (IOException e) {
             // System.out.println("An error occurred while loading documents: " + e.getMessage());
             return 0;
@@ -45,48 +120,1247 @@ public class Engine {
     }
 
     /**
-     * Adds a document to the list of documents.
+     * Loads the documents from the specified directory using the given number of threads to read and parse the files
+     * concurrently. The documents are added in the same order as {@link #loadDocs(String)} would add them.
+     *
+     * @param dirname The name of the directory.
+     * @param threads The number of threads to use.
+     * @return The number of documents loaded.
+     */
+    public int loadDocs(String dirname, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return this.loadDocs(dirname, pool, threads * 4);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Loads the documents from the specified directory by reading and parsing the files on the given executor. At most
+     * maxPending files are read ahead of the oldest file not yet added, so a slow file holds back the reading of new
+     * ones instead of filling the memory. The documents are added in the same order as {@link #loadDocs(String)} would
+     * add them.
+     *
+     * @param dirname    The name of the directory.
+     * @param executor   The executor to read and parse the files on.
+     * @param maxPending The maximum number of files being read or parsed at the same time.
+     * @return The number of documents loaded.
+     */
+    public int loadDocs(String dirname, ExecutorService executor, int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        }
+        if (dirname.isEmpty()) {
+            return 0;
+        }
+        List<Path> paths;
+        try {
+            paths = Engine.listDocs(dirname);
+        } catch (IOException e) {
+            // System.out.println("An error occurred while loading documents: " + e.getMessage());
+            return 0;
+        }
+        List<Doc> docs = new ArrayList<>(paths.size());
+        Deque<Future<Doc>> pending = new ArrayDeque<>();
+        try {
+            for (Path path : paths) {
+                if (pending.size() == maxPending) {
+                    docs.add(pending.removeFirst().get());
+                }
+                pending.addLast(executor.submit(() -> Engine.readDoc(path)));
+            }
+            while (!pending.isEmpty()) {
+                docs.add(pending.removeFirst().get());
+            }
+            this.load(paths, docs);
+            return this.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Keep the documents read so far, as if the directory ended there
+            this.load(paths.subList(0, docs.size()), docs);
+            return this.size();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException
+                  ? (RuntimeException) e.getCause()
+                  : new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<Doc> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Loads the documents from the specified directory through a segment file, which keeps the parsed documents and
+     * their index between runs. If the segment file was written from the same files and stop words, with the block
+     * size of this engine, the documents are read from it instead of being parsed again. Otherwise they are parsed and
+     * the segment file is rewritten.
+     *
+     * @param dirname     The name of the directory.
+     * @param segmentFile The name of the segment file.
+     * @return The number of documents loaded.
+     */
+    public int loadDocs(String dirname, String segmentFile) {
+        if (dirname.isEmpty()) {
+            return 0;
+        }
+        try {
+            List<Path> paths = Engine.listDocs(dirname);
+            Path segment = Paths.get(segmentFile);
+            byte[] fingerprint = SegmentFile.fingerprint(Paths.get(dirname), paths, Word.stopWords);
+            SegmentFile.Contents contents = SegmentFile.read(segment, Paths.get(dirname), fingerprint,
+                                                             this.postingsBlockSize);
+            if (contents == null) {
+                List<Doc> docs = new ArrayList<>();
+                List<Path> docPaths = new ArrayList<>();
+                InvertedIndex index = new InvertedIndex(this.postingsBlockSize);
+                for (Path path : paths) {
+                    Doc doc = Engine.readDoc(path);
+                    if (doc != null) {
+                        index.add(docs.size(), doc);
+                        docs.add(doc);
+                        docPaths.add(path);
+                    }
+                }
+                contents = new SegmentFile.Contents(docs, docPaths, index);
+                try {
+                    SegmentFile.write(segment, fingerprint, contents);
+                } catch (IOException e) {
+                    // System.out.println("An error occurred while writing segment: " + e.getMessage());
+                }
+            }
+            synchronized (this.lock) {
+                int base = this.docCount;
+                for (int i = 0; i < contents.paths.size(); i++) {
+                    this.addId(Engine.key(contents.paths.get(i)), base + i);
+                }
+                this.index.addAll(contents.index, base);
+                for (Doc doc : contents.docs) {
+                    this.appendDoc(doc);
+                }
+                this.compactIfNeeded();
+                this.publish();
+            }
+            return this.size();
+        } catch (IOException e) {
+            // System.out.println("An error occurred while loading documents: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Lists the text files of the specified directory in sorted order.
+     *
+     * @param dirname The name of the directory.
+     * @return The paths of the text files.
+     * @throws IOException If the directory cannot be listed.
+     */
+    static List<Path> listDocs(String dirname) throws IOException {
+        try (Stream<Path> paths = Files.list(Paths.get(dirname))) {
+            return paths.filter(Files::isRegularFile)
+                        .sorted()
+                        .filter(path -> path.toString().endsWith(".txt"))
+                        .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads and parses a UTF-8 encoded document.
      *
      * @param path The path of the document.
+     * @return The document, or null if the file cannot be read.
      */
-    private void addDoc(Path path) {
-        String content;
+    private static Doc readDoc(Path path) {
         try {
-            content = new String(Files.readAllBytes(path));
+            return DocReader.read(path);
         } catch (IOException e) {
             // System.out.println("An error occurred while adding document: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key of a source file, which is its absolute path without redundant elements, so two paths of the
+     * same file have the same key.
+     *
+     * @param path The path of the source file.
+     * @return The key of the source file.
+     */
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Appends the loaded documents to the engine and publishes them as one change, so searches see either none or all
+     * of them, and the query cache is cleared only once. The documents loaded before from the same files are kept.
+     *
+     * @param paths The paths of the source files.
+     * @param docs  The document of every path, or null where it could not be read.
+     */
+    private void load(List<Path> paths, List<Doc> docs) {
+        synchronized (this.lock) {
+            for (int i = 0; i < docs.size(); i++) {
+                if (docs.get(i) != null) {
+                    this.add(Engine.key(paths.get(i)), docs.get(i));
+                }
+            }
+            this.compactIfNeeded();
+            this.publish();
+        }
+    }
+
+    /**
+     * Adds a document to the list of documents and to the inverted index, replacing the documents previously loaded
+     * from the same file. The caller holds the lock and publishes the change.
+     *
+     * @param key The key of the source file.
+     * @param doc The document.
+     */
+    private void replace(Path key, Doc doc) {
+        this.delete(key);
+        this.add(key, doc);
+    }
+
+    /**
+     * Adds a document to the list of documents and to the inverted index, after the documents previously loaded from
+     * the same file. The caller holds the lock and publishes the change.
+     *
+     * @param key The key of the source file.
+     * @param doc The document.
+     */
+    private void add(Path key, Doc doc) {
+        this.addId(key, this.docCount);
+        this.index.add(this.docCount, doc);
+        this.appendDoc(doc);
+    }
+
+    /**
+     * Records that the document with the given id is loaded from the given file. The caller holds the lock and
+     * publishes the change.
+     *
+     * @param key The key of the source file.
+     * @param id  The id of the document, larger than the ids of the documents recorded before.
+     */
+    private void addId(Path key, int id) {
+        int[] ids = this.ids.get(key);
+        if (ids == null) {
+            ids = new int[]{id};
+        } else {
+            ids = Arrays.copyOf(ids, ids.length + 1);
+            ids[ids.length - 1] = id;
+        }
+        this.ids.put(key, ids);
+        this.liveCount++;
+    }
+
+    /**
+     * Appends a document to the array of documents, growing it if needed. The published snapshots only read the
+     * elements before their own count, which are never written again.
+     *
+     * @param doc The document.
+     */
+    private void appendDoc(Doc doc) {
+        if (this.docCount == this.docs.length) {
+            this.docs = Arrays.copyOf(this.docs, this.docCount * 2);
+        }
+        this.docs[this.docCount++] = doc;
+    }
+
+    /**
+     * Marks the documents loaded from the given file as deleted. Their ids stay in the index until the next
+     * compaction. The caller holds the lock and publishes the change.
+     *
+     * @param key The key of the source file.
+     * @return True if the documents were deleted, false if there is no document for the file.
+     */
+    private boolean delete(Path key) {
+        int[] ids = this.ids.remove(key);
+        if (ids == null) {
+            return false;
+        }
+        for (int id : ids) {
+            this.deleted.set(id);
+        }
+        this.liveCount -= ids.length;
+        this.deletedChanged = true;
+        return true;
+    }
+
+    /**
+     * Publishes the current documents as the snapshot which new searches run against. The caller holds the lock.
+     */
+    private void publish() {
+        // The deleted ids are the only state which changes in place, so they are copied when they have changed
+        BitSet deleted = this.deletedChanged ? (BitSet) this.deleted.clone() : this.snapshot.deleted;
+        this.deletedChanged = false;
+        Snapshot previous = this.snapshot;
+        this.snapshot = new Snapshot(previous.version + 1, this.docs, this.docCount, this.index, deleted,
+                                     this.liveCount);
+        QueryCache cache = this.queryCache;
+        if (cache != null) {
+            // The cached results are stale now, and would keep removed documents alive
+            cache.clear();
+        }
+    }
+
+    /**
+     * Adds the document of the given file, unless the engine already has a document for that file.
+     *
+     * @param path The path of the document.
+     * @return True if the document was added, false if it is already in the engine or cannot be read.
+     */
+    public boolean addDoc(String path) {
+        Path key = Engine.key(Paths.get(path));
+        Doc doc = Engine.readDoc(key);
+        if (doc == null) {
+            return false;
+        }
+        synchronized (this.lock) {
+            if (this.ids.containsKey(key)) {
+                return false;
+            }
+            this.add(key, doc);
+            this.publish();
+            return true;
+        }
+    }
+
+    /**
+     * Reads the document of the given file again and replaces every document loaded from the file before, or adds the
+     * document if the engine does not have it yet. The new version is appended, so among equally ranked results it now
+     * comes after the documents which were added before it.
+     *
+     * @param path The path of the document.
+     * @return True if the document was updated or added, false if it cannot be read, in which case the previous
+     * version is kept.
+     */
+    public boolean updateDoc(String path) {
+        Path key = Engine.key(Paths.get(path));
+        Doc doc = Engine.readDoc(key);
+        if (doc == null) {
+            return false;
+        }
+        synchronized (this.lock) {
+            this.replace(key, doc);
+            this.compactIfNeeded();
+            this.publish();
+            return true;
+        }
+    }
+
+    /**
+     * Removes every document loaded from the given file.
+     *
+     * @param path The path of the document.
+     * @return True if the documents were removed, false if the engine has no document for the file.
+     */
+    public boolean removeDoc(String path) {
+        synchronized (this.lock) {
+            boolean removed = this.delete(Engine.key(Paths.get(path)));
+            this.compactIfNeeded();
+            this.publish();
+            return removed;
+        }
+    }
+
+    /**
+     * Brings the documents of the given files in line with the files on disk, as one change: searches see either
+     * none or all of it. A file which is no longer a text file is removed, and any other file is read again. A file
+     * which exists but cannot be read keeps its previous version. The files are read before the engine is locked, so
+     * other changes are only held up while the documents are swapped.
+     *
+     * @param paths The paths of the documents.
+     * @return The number of documents updated, added or removed.
+     */
+    public int syncDocs(Collection<String> paths) {
+        Map<Path, Doc> changes = new LinkedHashMap<>();
+        for (String path : paths) {
+            Path key = Engine.key(Paths.get(path));
+            if (Files.isRegularFile(key) && key.toString().endsWith(".txt")) {
+                Doc doc = Engine.readDoc(key);
+                if (doc != null) {
+                    changes.put(key, doc);
+                }
+            } else {
+                changes.put(key, null);
+            }
+        }
+        synchronized (this.lock) {
+            int changed = 0;
+            for (Map.Entry<Path, Doc> change : changes.entrySet()) {
+                if (change.getValue() != null) {
+                    this.replace(change.getKey(), change.getValue());
+                    changed++;
+                } else if (this.delete(change.getKey())) {
+                    changed++;
+                }
+            }
+            this.compactIfNeeded();
+            this.publish();
+            return changed;
+        }
+    }
+
+    /**
+     * Returns the keys of the source files of all documents.
+     *
+     * @return The keys of the source files.
+     */
+    Set<Path> getPaths() {
+        synchronized (this.lock) {
+            return new HashSet<>(this.ids.keySet());
+        }
+    }
+
+    /**
+     * Drops the deleted documents from the list of documents and from the index, and renumbers the remaining ones in
+     * the same order. This takes time in proportion to the size of the index, so it is only done automatically once
+     * enough documents are deleted. The compacted documents and index are new copies, so searches still running
+     * against the previous snapshot are not disturbed.
+     */
+    public void compact() {
+        synchronized (this.lock) {
+            this.compactDocs();
+            this.publish();
+        }
+    }
+
+    /**
+     * Compacts the documents and the index. The caller holds the lock and publishes the change.
+     */
+    private void compactDocs() {
+        if (this.deleted.isEmpty()) {
             return;
         }
-        this.docs.add(new Doc(content));
+        int[] newIds = new int[this.docCount];
+        Doc[] docs = new Doc[Math.max(16, this.liveCount)];
+        int live = 0;
+        for (int id = 0; id < newIds.length; id++) {
+            if (this.deleted.get(id)) {
+                newIds[id] = -1;
+            } else {
+                docs[live] = this.docs[id];
+                newIds[id] = live++;
+            }
+        }
+        this.index = this.index.compact(newIds);
+        this.docs = docs;
+        this.docCount = live;
+        for (int[] ids : this.ids.values()) {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = newIds[ids[i]];
+            }
+        }
+        this.deleted.clear();
+        this.deletedChanged = true;
+    }
+
+    /**
+     * Compacts the engine if too many of its document ids are deleted. The caller holds the lock and publishes the
+     * change.
+     */
+    private void compactIfNeeded() {
+        int deletedCount = this.docCount - this.liveCount;
+        if (deletedCount > 0 && deletedCount >= this.docCount * MAX_DELETED_RATIO) {
+            this.compactDocs();
+        }
     }
 
     /**
-     * Returns an array of documents in the original order.
+     * Returns the number of documents in the engine.
+     *
+     * @return The number of documents.
+     */
+    private int size() {
+        return this.snapshot.size;
+    }
+
+    /**
+     * Returns an array of documents in the original order. An updated document comes after the documents which were
+     * added before its update.
      *
      * @return An array of documents.
      */
     public Doc[] getDocs() {
-        return this.docs.toArray(new Doc[0]);
+        Snapshot snapshot = this.snapshot;
+        Doc[] docs = new Doc[snapshot.size];
+        int i = 0;
+        for (int id = 0; id < snapshot.docCount; id++) {
+            if (!snapshot.deleted.get(id)) {
+                docs[i++] = snapshot.docs[id];
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Sets how many shards a search is split into. Every shard covers a contiguous range of document ids and is
+     * evaluated on the given executor, while the calling thread evaluates the first shard itself. The results of the
+     * shards are merged in the same order as a search with one shard, including the ties. Small engines are split into
+     * fewer shards, so that every shard has at least {@link #MIN_SHARD_DOCS} document ids.
+     *
+     * @param shards   The number of shards, or 1 to search in the calling thread only.
+     * @param executor The executor to evaluate the shards on.
+     */
+    public void setSearchShards(int shards, ExecutorService executor) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.searchExecutor = executor;
+        this.searchShards = shards;
+    }
+
+    /**
+     * Sets the cache which searches look up their results in first, or null to search without a cache. Cached results
+     * are shared between the queries with the same keywords, so the lists returned by the searches are copies.
+     *
+     * @param cache The query cache, or null.
+     */
+    public void setQueryCache(QueryCache cache) {
+        this.queryCache = cache;
+    }
+
+    /**
+     * Returns the cache which searches look up their results in first.
+     *
+     * @return The query cache, or null if there is none.
+     */
+    public QueryCache getQueryCache() {
+        return this.queryCache;
+    }
+
+    /**
+     * Sets the cache which {@link #htmlResult(List)} looks up the HTML of every result in first, or null to render
+     * every result.
+     *
+     * @param cache The HTML cache, or null.
+     */
+    public void setHtmlCache(HtmlCache cache) {
+        this.htmlCache = cache;
+    }
+
+    /**
+     * Returns the cache which {@link #htmlResult(List)} looks up the HTML of every result in first.
+     *
+     * @return The HTML cache, or null if there is none.
+     */
+    public HtmlCache getHtmlCache() {
+        return this.htmlCache;
+    }
+
+    /**
+     * Sets the metrics which record the latency of every stage of the searches, or null to record nothing.
+     *
+     * @param metrics The metrics, or null.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics which record the latency of every stage of the searches.
+     *
+     * @return The metrics, or null if there are none.
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the log which searches taking at least its threshold are traced into, or null to trace nothing.
+     *
+     * @param log The slow query log, or null.
+     */
+    public void setSlowQueryLog(SlowQueryLog log) {
+        this.slowQueryLog = log;
+    }
+
+    /**
+     * Returns the log which searches taking at least its threshold are traced into.
+     *
+     * @return The slow query log, or null if there is none.
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return this.slowQueryLog;
     }
 
     /**
-     * Performs the search function of the engine. Returns a list of sorted search results.
+     * Parses a search phrase into a query, recording the time it takes in the metrics of the engine.
+     *
+     * @param searchPhrase The search phrase.
+     * @return The query.
+     */
+    public Query parseQuery(String searchPhrase) {
+        Metrics.Timer timer = Metrics.start(this.metrics);
+        Query q = new Query(searchPhrase);
+        timer.lap(Metrics.Stage.QUERY);
+        return q;
+    }
+
+    /**
+     * Performs the search function of the engine. Returns a list of sorted search results. Only the documents found in
+     * the postings lists of the query's keywords are visited, in the original order, so the results are the same as
+     * matching the query against every document. The phrases of the query are checked against the positions in the
+     * postings lists, without reading the words of the documents.
      *
      * @param q The query.
      * @return A list of sorted search results.
      */
     public List<Result> search(Query q) {
+        SlowQueryLog log = this.slowQueryLog;
+        Metrics.Timer timer = Metrics.start(this.metrics, log != null);
+        timer.count(Metrics.Counter.SEARCHES, 1);
+        Snapshot snapshot = this.snapshot;
+        QueryCache cache = this.queryCache;
+        if (cache != null) {
+            List<Result> cached = cache.get(snapshot.version, q, 0, -1);
+            if (cached != null) {
+                timer.lap(Metrics.Stage.LOOKUP);
+                timer.count(Metrics.Counter.RESULTS, cached.size());
+                if (log != null) {
+                    log.record(q, 0, -1, timer);
+                    timer.finish();
+                }
+                return new ArrayList<>(cached);
+            }
+        }
+        List<Word> keywords = q.getKeywords();
+        List<Phrase> phrases = q.getPhrases();
+        InvertedIndex.Postings[] postings = Engine.postings(snapshot, keywords);
+        timer.lap(Metrics.Stage.LOOKUP);
         List<Result> results = new ArrayList<>();
-        for (Doc doc : this.docs) {
-            List<Match> matches = q.matchAgainst(doc);
-            if (!matches.isEmpty()) {
-                results.add(new Result(doc, matches));
+        for (List<Result> shard : this.inShards(snapshot.docCount, (from, to) -> {
+            InvertedIndex.Postings.Reader[] readers = Engine.readers(postings, to);
+            return Engine.collectResults(snapshot, keywords, phrases, readers, Engine.cursors(readers, from), timer);
+        })) {
+            results.addAll(shard);
+        }
+        timer.lap(Metrics.Stage.MATCH);
+        // The shards are sorted runs in document order, which the stable sort merges without breaking the ties
+        Collections.sort(results);
+        timer.lap(Metrics.Stage.SORT);
+        timer.count(Metrics.Counter.RESULTS, results.size());
+        if (log != null) {
+            log.record(q, 0, -1, timer);
+            timer.finish();
+        }
+        if (cache != null) {
+            cache.put(snapshot.version, q, 0, -1, results);
+            return new ArrayList<>(results);
+        }
+        return results;
+    }
+
+    /**
+     * Builds the results of the documents at the cursors of the postings lists, up to the end of the lists.
+     *
+     * @param snapshot The snapshot to search.
+     * @param keywords The keywords of the query.
+     * @param phrases  The phrases of the query, which the documents have to contain.
+     * @param postings The readers of the postings lists of the keywords.
+     * @param cursors  The index in every postings list to start from.
+     * @param timer    The timer of the search, which counts the visited documents and built matches.
+     * @return The results, sorted.
+     */
+    private static List<Result> collectResults(Snapshot snapshot, List<Word> keywords, List<Phrase> phrases,
+                                               InvertedIndex.Postings.Reader[] postings, int[] cursors,
+                                               Metrics.Timer timer) {
+        List<Result> results = new ArrayList<>();
+        int[] entries = new int[postings.length];
+        int visited = 0;
+        int matchCount = 0;
+        int docId;
+        while ((docId = Engine.nextDoc(postings, cursors)) != Integer.MAX_VALUE) {
+            if (snapshot.deleted.get(docId)) {
+                Engine.skipDoc(postings, cursors, docId);
+                continue;
             }
+            visited++;
+            Doc doc = snapshot.docs[docId];
+            if (!phrases.isEmpty()) {
+                for (int i = 0; i < postings.length; i++) {
+                    boolean found = postings[i] != null && cursors[i] < postings[i].size()
+                                    && postings[i].docId(cursors[i]) == docId;
+                    entries[i] = found ? cursors[i] : -1;
+                }
+                if (!Engine.containsPhrases(doc, phrases, postings, entries)) {
+                    Engine.skipDoc(postings, cursors, docId);
+                    continue;
+                }
+            }
+            // Build the matches of this document in keyword order, then sort them by first index
+            List<Match> matches = new ArrayList<>();
+            for (int i = 0; i < postings.length; i++) {
+                if (postings[i] != null && cursors[i] < postings[i].size() && postings[i].docId(cursors[i]) == docId) {
+                    matches.add(new Match(doc, keywords.get(i), postings[i].freq(cursors[i]),
+                                          postings[i].firstPosition(cursors[i])));
+                    cursors[i]++;
+                }
+            }
+            Collections.sort(matches);
+            matchCount += matches.size();
+            results.add(new Result(doc, matches));
         }
+        timer.count(Metrics.Counter.DOCUMENTS, visited);
+        timer.count(Metrics.Counter.MATCHES, matchCount);
         Collections.sort(results);
         return results;
     }
 
+    /**
+     * Determines if a document contains every phrase of a query, from the positions in the postings lists.
+     *
+     * @param doc      The document.
+     * @param phrases  The phrases of the query.
+     * @param postings The readers of the postings lists of the keywords.
+     * @param entries  The index of the entry of the document in every postings list, or -1 if it has none.
+     * @return True if the document contains every phrase.
+     */
+    private static boolean containsPhrases(Doc doc, List<Phrase> phrases, InvertedIndex.Postings.Reader[] postings,
+                                           int[] entries) {
+        for (Phrase phrase : phrases) {
+            if (!phrase.matches(postings, entries, doc.getTitleLength())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs {@link #search(Query)} for every query of a batch in one pass. The keywords of all queries are looked up
+     * together, and the postings list of every distinct keyword is walked and decoded once for the whole batch, however
+     * many queries share it. All queries search the same snapshot. The batch is timed as a whole in the metrics, and is
+     * not logged in the slow query log.
+     *
+     * @param queries The queries.
+     * @return A list of sorted search results for every query, in the order of the queries.
+     */
+    public List<List<Result>> searchBatch(List<Query> queries) {
+        Metrics.Timer timer = Metrics.start(this.metrics);
+        timer.count(Metrics.Counter.SEARCHES, queries.size());
+        Snapshot snapshot = this.snapshot;
+        QueryCache cache = this.queryCache;
+        List<List<Result>> results = new ArrayList<>();
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            List<Result> cached = cache == null ? null : cache.get(snapshot.version, queries.get(i), 0, -1);
+            if (cached != null) {
+                results.add(new ArrayList<>(cached));
+            } else {
+                results.add(new ArrayList<>());
+                pending.add(i);
+            }
+        }
+        Batch batch = new Batch(snapshot, pending.stream().map(queries::get).collect(Collectors.toList()));
+        timer.lap(Metrics.Stage.LOOKUP);
+        int docCount = pending.isEmpty() ? 0 : snapshot.docCount;
+        for (List<List<Result>> shard : this.inShards(docCount, (from, to) -> {
+            InvertedIndex.Postings.Reader[] readers = Engine.readers(batch.postings, to);
+            return batch.collect(snapshot, readers, Engine.cursors(readers, from), timer);
+        })) {
+            for (int p = 0; p < pending.size(); p++) {
+                results.get(pending.get(p)).addAll(shard.get(p));
+            }
+        }
+        timer.lap(Metrics.Stage.MATCH);
+        for (int i : pending) {
+            // The shards are sorted runs in document order, which the stable sort merges without breaking the ties
+            Collections.sort(results.get(i));
+        }
+        timer.lap(Metrics.Stage.SORT);
+        int resultCount = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            resultCount += results.get(i).size();
+        }
+        timer.count(Metrics.Counter.RESULTS, resultCount);
+        if (cache != null) {
+            for (int i : pending) {
+                cache.put(snapshot.version, queries.get(i), 0, -1, results.get(i));
+                results.set(i, new ArrayList<>(results.get(i)));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the first k results of {@link #search(Query)}.
+     *
+     * @param q The query.
+     * @param k The maximum number of results.
+     * @return A list of at most k sorted search results.
+     */
+    public List<Result> search(Query q, int k) {
+        return this.search(q, 0, k);
+    }
+
+    /**
+     * Returns one page of the results of {@link #search(Query)}: the results from offset, inclusive, to offset + limit,
+     * exclusive. Documents are ranked from their postings without building any Match or Result, and only the best
+     * offset + limit of them are kept in a bounded heap, so Match and Result objects are only built for the page.
+     * Documents which cannot beat the worst of the kept ones are skipped, using upper bounds of the frequencies and
+     * lower bounds of the first positions of every keyword.
+     *
+     * @param q      The query.
+     * @param offset The number of results to skip.
+     * @param limit  The maximum number of results to return.
+     * @return A list of at most limit sorted search results.
+     */
+    public List<Result> search(Query q, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative: " + offset + ", " + limit);
+        }
+        int k = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        List<Result> results = new ArrayList<>();
+        if (limit == 0) {
+            return results;
+        }
+        SlowQueryLog log = this.slowQueryLog;
+        Metrics.Timer timer = Metrics.start(this.metrics, log != null);
+        timer.count(Metrics.Counter.SEARCHES, 1);
+        Snapshot snapshot = this.snapshot;
+        QueryCache cache = this.queryCache;
+        if (cache != null) {
+            List<Result> cached = cache.get(snapshot.version, q, offset, limit);
+            if (cached != null) {
+                timer.lap(Metrics.Stage.LOOKUP);
+                timer.count(Metrics.Counter.RESULTS, cached.size());
+                if (log != null) {
+                    log.record(q, offset, limit, timer);
+                    timer.finish();
+                }
+                return new ArrayList<>(cached);
+            }
+        }
+        List<Word> keywords = q.getKeywords();
+        List<Phrase> phrases = q.getPhrases();
+        InvertedIndex.Postings[] postings = Engine.postings(snapshot, keywords);
+        timer.lap(Metrics.Stage.LOOKUP);
+        // Every shard keeps its own best k, and the best k overall are among them
+        List<Candidate> best = new ArrayList<>();
+        for (PriorityQueue<Candidate> shard : this.inShards(snapshot.docCount, (from, to) -> {
+            InvertedIndex.Postings.Reader[] readers = Engine.readers(postings, to);
+            return Engine.collectCandidates(snapshot, phrases, readers, Engine.cursors(readers, from), k, timer);
+        })) {
+            best.addAll(shard);
+        }
+        timer.lap(Metrics.Stage.MATCH);
+        Collections.sort(best);
+        timer.lap(Metrics.Stage.SORT);
+        InvertedIndex.Postings.Reader[] readers = Engine.readers(postings, snapshot.docCount);
+        int matchCount = 0;
+        for (int i = offset; i < Math.min(best.size(), k); i++) {
+            Result result = Engine.buildResult(snapshot, best.get(i).getDocId(), keywords, readers);
+            matchCount += result.getMatches().size();
+            results.add(result);
+        }
+        timer.lap(Metrics.Stage.RESULTS);
+        timer.count(Metrics.Counter.MATCHES, matchCount);
+        timer.count(Metrics.Counter.RESULTS, results.size());
+        if (log != null) {
+            log.record(q, offset, limit, timer);
+            timer.finish();
+        }
+        if (cache != null) {
+            cache.put(snapshot.version, q, offset, limit, results);
+            return new ArrayList<>(results);
+        }
+        return results;
+    }
+
+    /**
+     * Ranks the documents at the cursors of the postings lists, up to the end of the lists, and keeps the best k.
+     * <p>
+     * Once k candidates are kept, the worst of them is a threshold which a document has to beat. The postings lists
+     * are then split in the style of MaxScore: the non-essential lists are those whose documents cannot beat the
+     * threshold from their bounds alone, so only the documents of the essential lists are visited, and the
+     * non-essential lists are only probed for them, while the bounds of the unprobed lists still allow it to win. A
+     * document has to be in the lists of every keyword of the phrases, and the phrases are only checked against the
+     * positions of a document which would be kept.
+     *
+     * @param snapshot The snapshot to search.
+     * @param phrases  The phrases of the query, which the documents have to contain.
+     * @param postings The readers of the postings lists of the keywords.
+     * @param cursors  The index in every postings list to start from.
+     * @param k        The number of candidates to keep.
+     * @param timer    The timer of the search, which counts the visited documents.
+     * @return A heap of at most k candidates, with the worst of them at the head.
+     */
+    private static PriorityQueue<Candidate> collectCandidates(Snapshot snapshot, List<Phrase> phrases,
+                                                              InvertedIndex.Postings.Reader[] postings, int[] cursors,
+                                                              int k, Metrics.Timer timer) {
+        // The worst of the best k candidates so far is at the head of the heap
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(Math.min(k, 1024), Collections.reverseOrder());
+        // The lists in order[0, split) are non-essential, bounds[3 * p + ...] hold the bounds of order[0, p)
+        int[] order = Engine.liveLists(postings);
+        long[] bounds = new long[3 * order.length + 3];
+        int split = 0;
+        Candidate candidate = new Candidate();
+        int[] entries = phrases.isEmpty() ? null : new int[postings.length];
+        int[] required = Engine.phraseKeywords(phrases);
+        int visited = 0;
+        while (true) {
+            int docId = Integer.MAX_VALUE;
+            for (int p = split; p < order.length; p++) {
+                int i = order[p];
+                if (cursors[i] < postings[i].size()) {
+                    docId = Math.min(docId, postings[i].docId(cursors[i]));
+                }
+            }
+            if (docId == Integer.MAX_VALUE) {
+                break;
+            }
+            // A document without every keyword of the phrases is dropped before any of its entries are decoded
+            if (!Engine.inAll(postings, cursors, required, docId)) {
+                Engine.skipDoc(postings, cursors, docId);
+                continue;
+            }
+            candidate.reset(docId);
+            for (int p = split; p < order.length; p++) {
+                int i = order[p];
+                if (cursors[i] < postings[i].size() && postings[i].docId(cursors[i]) == docId) {
+                    candidate.add(postings[i].freq(cursors[i]), postings[i].firstPosition(cursors[i]));
+                    cursors[i]++;
+                }
+            }
+            if (snapshot.deleted.get(docId)) {
+                continue;
+            }
+            visited++;
+            // Probe the non-essential lists with the largest bounds first, while the document can still win
+            boolean pruned = false;
+            for (int p = split - 1; p >= 0 && !pruned; p--) {
+                if (!candidate.canBeat(heap.peek(), p + 1, bounds[3 * p + 4], bounds[3 * p + 5])) {
+                    pruned = true;
+                } else {
+                    int i = order[p];
+                    cursors[i] = postings[i].advance(cursors[i], docId);
+                    if (cursors[i] < postings[i].size() && postings[i].docId(cursors[i]) == docId) {
+                        candidate.add(postings[i].freq(cursors[i]), postings[i].firstPosition(cursors[i]));
+                        cursors[i]++;
+                    }
+                }
+            }
+            if (pruned || heap.size() == k && candidate.compareTo(heap.peek()) >= 0) {
+                continue;
+            }
+            if (entries != null) {
+                // Every list was probed, and the entries of this document are just before the cursors
+                for (int i = 0; i < postings.length; i++) {
+                    boolean found = postings[i] != null && cursors[i] > 0 && postings[i].docId(cursors[i] - 1) == docId;
+                    entries[i] = found ? cursors[i] - 1 : -1;
+                }
+                if (!Engine.containsPhrases(snapshot.docs[docId], phrases, postings, entries)) {
+                    continue;
+                }
+            }
+            if (heap.size() < k) {
+                heap.add(candidate);
+                candidate = new Candidate();
+            } else {
+                // Reuse the evicted candidate for the next document
+                Candidate worst = heap.poll();
+                heap.add(candidate);
+                candidate = worst;
+            }
+            if (heap.size() == k) {
+                split = Engine.partition(postings, order, bounds, heap.peek());
+                // Lists which became essential skip the documents already ranked
+                for (int p = split; p < order.length; p++) {
+                    cursors[order[p]] = postings[order[p]].advance(cursors[order[p]], docId + 1);
+                }
+            }
+        }
+        timer.count(Metrics.Counter.DOCUMENTS, visited);
+        return heap;
+    }
+
+    /**
+     * Returns the indexes of the keywords which are in at least one of the phrases of a query.
+     *
+     * @param phrases The phrases of the query.
+     * @return The indexes of the keywords, in ascending order.
+     */
+    private static int[] phraseKeywords(List<Phrase> phrases) {
+        return phrases.stream().flatMapToInt(phrase -> Arrays.stream(phrase.keywords())).distinct().sorted().toArray();
+    }
+
+    /**
+     * Determines if a document is in all of the given postings lists, moving their cursors up to it.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @param cursors  The current index in every postings list, which are moved to the first entry at or after the
+     *                 document.
+     * @param lists    The indexes of the postings lists to look in.
+     * @param docId    The document.
+     * @return True if every one of the postings lists has the document.
+     */
+    private static boolean inAll(InvertedIndex.Postings.Reader[] postings, int[] cursors, int[] lists, int docId) {
+        for (int i : lists) {
+            if (postings[i] == null) {
+                return false;
+            }
+            cursors[i] = postings[i].advance(cursors[i], docId);
+            if (cursors[i] == postings[i].size() || postings[i].docId(cursors[i]) != docId) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the indexes of the postings lists which have entries.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @return The indexes of the non-empty lists, in keyword order.
+     */
+    private static int[] liveLists(InvertedIndex.Postings.Reader[] postings) {
+        int[] order = new int[postings.length];
+        int n = 0;
+        for (int i = 0; i < postings.length; i++) {
+            if (postings[i] != null && postings[i].size() > 0) {
+                order[n++] = i;
+            }
+        }
+        return Arrays.copyOf(order, n);
+    }
+
+    /**
+     * Orders the postings lists so that the longest prefix of them is non-essential: a document found in these lists
+     * only cannot beat the threshold, whatever its entries are. Fewer lists than the matches of the threshold are
+     * always non-essential, so the longest lists are picked. A document in as many lists as the threshold has matches
+     * still cannot beat it if the bounds of the lists are low enough, so the lists with the lowest bounds are tried.
+     *
+     * @param postings  The readers of the postings lists of the keywords.
+     * @param order     The indexes of the non-empty lists, which are reordered.
+     * @param bounds    The array to store the bounds in: the number of lists, the sum of their maximum frequencies
+     *                  and the sum of their minimum first positions of every prefix of the order.
+     * @param threshold The candidate to beat.
+     * @return The number of non-essential lists at the start of the order.
+     */
+    private static int partition(InvertedIndex.Postings.Reader[] postings, int[] order, long[] bounds,
+                                 Candidate threshold) {
+        int matches = threshold.getMatchCount();
+        // Insertion sorts, the number of keywords is small
+        for (int p = 1; p < order.length; p++) {
+            for (int q = p; q > 0 && Engine.lowerBound(postings[order[q]], postings[order[q - 1]]); q--) {
+                Engine.swap(order, q, q - 1);
+            }
+        }
+        Engine.sumBounds(postings, order, bounds);
+        if (matches <= order.length && !Candidate.canBeat(matches, bounds[3 * matches + 1], bounds[3 * matches + 2],
+                                                            threshold)) {
+            return matches;
+        }
+        for (int p = 1; p < order.length; p++) {
+            for (int q = p; q > 0 && postings[order[q]].size() > postings[order[q - 1]].size(); q--) {
+                Engine.swap(order, q, q - 1);
+            }
+        }
+        Engine.sumBounds(postings, order, bounds);
+        return Math.min(matches - 1, order.length);
+    }
+
+    /**
+     * Returns whether a postings list has lower bounds than another one: a lower maximum frequency, or the same and a
+     * higher minimum first position.
+     *
+     * @param a The reader of the one postings list.
+     * @param b The reader of the other postings list.
+     * @return True if the bounds of a are lower.
+     */
+    private static boolean lowerBound(InvertedIndex.Postings.Reader a, InvertedIndex.Postings.Reader b) {
+        return a.maxFreq() != b.maxFreq() ? a.maxFreq() < b.maxFreq() : a.minFirstPosition() > b.minFirstPosition();
+    }
+
+    /**
+     * Stores the bounds of every prefix of the order of the postings lists.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @param order    The order of the non-empty lists.
+     * @param bounds   The array to store the bounds in, three for every prefix.
+     */
+    private static void sumBounds(InvertedIndex.Postings.Reader[] postings, int[] order, long[] bounds) {
+        for (int p = 0; p < order.length; p++) {
+            bounds[3 * p + 3] = p + 1;
+            bounds[3 * p + 4] = bounds[3 * p + 1] + postings[order[p]].maxFreq();
+            bounds[3 * p + 5] = bounds[3 * p + 2] + postings[order[p]].minFirstPosition();
+        }
+    }
+
+    /**
+     * Swaps two elements of an array.
+     *
+     * @param a The array.
+     * @param i The index of the one element.
+     * @param j The index of the other element.
+     */
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * Splits the document ids into shards and evaluates the given task on every shard, the first one in the calling
+     * thread and the others on the search executor.
+     *
+     * @param docCount The number of document ids.
+     * @param task     The task, which takes the first document id of a shard and the id after its last one.
+     * @param <T>      The type of the result of a shard.
+     * @return The result of every shard, in document order.
+     */
+    private <T> List<T> inShards(int docCount, BiFunction<Integer, Integer, T> task) {
+        int shards = Math.max(1, Math.min(this.searchShards, docCount / MIN_SHARD_DOCS));
+        List<Future<T>> futures = new ArrayList<>();
+        try {
+            for (int shard = 1; shard < shards; shard++) {
+                int from = (int) ((long) docCount * shard / shards);
+                int to = (int) ((long) docCount * (shard + 1) / shards);
+                futures.add(this.searchExecutor.submit(() -> task.apply(from, to)));
+            }
+            List<T> results = new ArrayList<>();
+            results.add(task.apply(0, docCount / shards));
+            boolean interrupted = false;
+            for (Future<T> future : futures) {
+                while (true) {
+                    try {
+                        results.add(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        // A search must not return part of its results, so the shard is waited for anyway
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException
+                  ? (RuntimeException) e.getCause()
+                  : new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Cuts every postings list before the given document id and returns a new reader of it. Readers keep the block
+     * they decoded last, so every shard reads through its own.
+     *
+     * @param postings The postings lists of the keywords.
+     * @param docLimit The first document id to leave out.
+     * @return The readers of the cut postings lists.
+     */
+    private static InvertedIndex.Postings.Reader[] readers(InvertedIndex.Postings[] postings, int docLimit) {
+        InvertedIndex.Postings.Reader[] readers = new InvertedIndex.Postings.Reader[postings.length];
+        for (int i = 0; i < postings.length; i++) {
+            readers[i] = postings[i] == null ? null : postings[i].head(docLimit).reader();
+        }
+        return readers;
+    }
+
+    /**
+     * Returns the index of the first entry of every postings list whose document id is at least the given one.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @param docId    The first document id to visit.
+     * @return The cursors.
+     */
+    private static int[] cursors(InvertedIndex.Postings.Reader[] postings, int docId) {
+        int[] cursors = new int[postings.length];
+        for (int i = 0; i < postings.length; i++) {
+            if (postings[i] != null && docId > 0) {
+                int entry = postings[i].indexOf(docId);
+                cursors[i] = entry >= 0 ? entry : -entry - 1;
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Returns the postings list of every keyword in the given snapshot, or null for a keyword which no document
+     * contains. The index may already have documents added after the snapshot, which are cut off.
+     *
+     * @param snapshot The snapshot to search.
+     * @param keywords The keywords of a query.
+     * @return The postings lists, in keyword order.
+     */
+    private static InvertedIndex.Postings[] postings(Snapshot snapshot, List<Word> keywords) {
+        InvertedIndex.Postings[] postings = new InvertedIndex.Postings[keywords.size()];
+        for (int i = 0; i < keywords.size(); i++) {
+            InvertedIndex.Postings termPostings = snapshot.index.get(keywords.get(i).getTermId());
+            postings[i] = termPostings == null ? null : termPostings.head(snapshot.docCount);
+        }
+        return postings;
+    }
+
+    /**
+     * Returns the smallest document id at the cursors of the postings lists, which is the next document containing at
+     * least one keyword.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @param cursors  The current index in every postings list.
+     * @return The next document id, or Integer.MAX_VALUE if all postings lists are exhausted.
+     */
+    private static int nextDoc(InvertedIndex.Postings.Reader[] postings, int[] cursors) {
+        int docId = Integer.MAX_VALUE;
+        for (int i = 0; i < postings.length; i++) {
+            if (postings[i] != null && cursors[i] < postings[i].size()) {
+                docId = Math.min(docId, postings[i].docId(cursors[i]));
+            }
+        }
+        return docId;
+    }
+
+    /**
+     * Moves every cursor which is at the given document past it.
+     *
+     * @param postings The readers of the postings lists of the keywords.
+     * @param cursors  The current index in every postings list.
+     * @param docId    The document to skip.
+     */
+    private static void skipDoc(InvertedIndex.Postings.Reader[] postings, int[] cursors, int docId) {
+        for (int i = 0; i < postings.length; i++) {
+            if (postings[i] != null && cursors[i] < postings[i].size() && postings[i].docId(cursors[i]) == docId) {
+                cursors[i]++;
+            }
+        }
+    }
+
+    /**
+     * Builds the result of a document by looking up every keyword in its postings list.
+     *
+     * @param snapshot The snapshot which contains the document.
+     * @param docId    The id of the document.
+     * @param keywords The keywords of the query.
+     * @param postings The readers of the postings lists of the keywords.
+     * @return The result of the document.
+     */
+    private static Result buildResult(Snapshot snapshot, int docId, List<Word> keywords,
+                                      InvertedIndex.Postings.Reader[] postings) {
+        Doc doc = snapshot.docs[docId];
+        List<Match> matches = new ArrayList<>();
+        for (int i = 0; i < postings.length; i++) {
+            int entry = postings[i] == null ? -1 : postings[i].indexOf(docId);
+            if (entry >= 0) {
+                matches.add(new Match(doc, keywords.get(i), postings[i].freq(entry), postings[i].firstPosition(entry)));
+            }
+        }
+        Collections.sort(matches);
+        return new Result(doc, matches);
+    }
+
     /**
      * Converts a list of search results into HTML format.
      *
@@ -95,9 +1369,244 @@ public class Engine {
      */
     public String htmlResult(List<Result> results) {
         StringBuilder sb = new StringBuilder();
-        for (Result result : results) {
-            sb.append(result.htmlHighlight());
+        try {
+            this.htmlResult(results, sb);
+        } catch (IOException e) {
+            // A StringBuilder never throws
+            throw new UncheckedIOException(e);
         }
         return sb.toString();
     }
+
+    /**
+     * Writes a list of search results in HTML format to the given sink, one result after another. Without an HTML
+     * cache, the HTML of a result is not built in memory first. To write to an OutputStream, wrap it in a Writer with
+     * the wanted charset.
+     *
+     * @param results The list of search results.
+     * @param out     The sink to write to.
+     * @throws IOException If the sink fails.
+     */
+    public void htmlResult(List<Result> results, Appendable out) throws IOException {
+        Metrics.Timer timer = Metrics.start(this.metrics);
+        HtmlCache cache = this.htmlCache;
+        for (Result result : results) {
+            if (cache != null) {
+                out.append(cache.html(result));
+            } else {
+                result.writeHtml(out);
+            }
+        }
+        timer.lap(Metrics.Stage.HTML);
+        timer.count(Metrics.Counter.HTML_RESULTS, results.size());
+    }
+
+    /**
+     * The queries of a batch search, with the postings list of every distinct keyword among them. The lists are read
+     * one window of document ids at a time: the entries of every list in the window are decoded once into plain arrays,
+     * and then every query merges the arrays of its own keywords, so each query runs over data which is already
+     * decoded and in cache, and the decoded entries never take more than a window.
+     */
+    private static final class Batch {
+        /**
+         * The number of document ids in a window.
+         */
+        private static final int WINDOW_DOCS = 16384;
+
+        final List<List<Word>> keywords;
+        final List<List<Phrase>> phrases;
+        final InvertedIndex.Postings[] postings;
+        // Index in postings of every keyword of every query
+        final int[][] keywordLists;
+
+        /**
+         * Looks up the distinct keywords of the queries.
+         *
+         * @param snapshot The snapshot to search.
+         * @param queries  The queries.
+         */
+        Batch(Snapshot snapshot, List<Query> queries) {
+            this.keywords = new ArrayList<>();
+            this.phrases = new ArrayList<>();
+            this.keywordLists = new int[queries.size()][];
+            Map<Integer, Integer> lists = new HashMap<>();
+            List<Word> listKeywords = new ArrayList<>();
+            for (int q = 0; q < queries.size(); q++) {
+                List<Word> keywords = queries.get(q).getKeywords();
+                this.keywords.add(keywords);
+                this.phrases.add(queries.get(q).getPhrases());
+                this.keywordLists[q] = new int[keywords.size()];
+                for (int k = 0; k < keywords.size(); k++) {
+                    Integer list = lists.get(keywords.get(k).getTermId());
+                    if (list == null) {
+                        list = listKeywords.size();
+                        lists.put(keywords.get(k).getTermId(), list);
+                        listKeywords.add(keywords.get(k));
+                    }
+                    this.keywordLists[q][k] = list;
+                }
+            }
+            this.postings = Engine.postings(snapshot, listKeywords);
+        }
+
+        /**
+         * Builds the results of every query for the documents at the cursors of the postings lists, up to the end of
+         * the lists.
+         *
+         * @param snapshot The snapshot to search.
+         * @param postings The readers of the postings lists of the distinct keywords.
+         * @param cursors  The index in every postings list to start from.
+         * @param timer    The timer of the batch, which counts the documents visited by every query and built matches.
+         * @return The results of every query, sorted.
+         */
+        List<List<Result>> collect(Snapshot snapshot, InvertedIndex.Postings.Reader[] postings, int[] cursors,
+                                   Metrics.Timer timer) {
+            List<List<Result>> results = new ArrayList<>();
+            for (int q = 0; q < this.keywords.size(); q++) {
+                results.add(new ArrayList<>());
+            }
+            int[][] docIds = new int[postings.length][];
+            int[][] freqs = new int[postings.length][];
+            int[][] firstPositions = new int[postings.length][];
+            int[] lengths = new int[postings.length];
+            // The index in its postings list of the first decoded entry of every list
+            int[] starts = new int[postings.length];
+            // The readers and entries of the keywords of every query, for checking its phrases
+            InvertedIndex.Postings.Reader[][] queryPostings = new InvertedIndex.Postings.Reader[this.keywords.size()][];
+            int[][] entries = new int[this.keywords.size()][];
+            for (int q = 0; q < this.keywords.size(); q++) {
+                if (!this.phrases.get(q).isEmpty()) {
+                    queryPostings[q] = new InvertedIndex.Postings.Reader[this.keywordLists[q].length];
+                    for (int k = 0; k < this.keywordLists[q].length; k++) {
+                        queryPostings[q][k] = postings[this.keywordLists[q][k]];
+                    }
+                    entries[q] = new int[this.keywordLists[q].length];
+                }
+            }
+            int documentCount = 0;
+            int matchCount = 0;
+            int docId;
+            while ((docId = Engine.nextDoc(postings, cursors)) != Integer.MAX_VALUE) {
+                int docLimit = (int) Math.min((long) docId + WINDOW_DOCS, Integer.MAX_VALUE);
+                for (int i = 0; i < postings.length; i++) {
+                    lengths[i] = 0;
+                    starts[i] = cursors[i];
+                    if (postings[i] == null) {
+                        continue;
+                    }
+                    int end = postings[i].advance(cursors[i], docLimit);
+                    if (docIds[i] == null || docIds[i].length < end - cursors[i]) {
+                        int capacity = Math.min(end - cursors[i], WINDOW_DOCS);
+                        docIds[i] = new int[capacity];
+                        freqs[i] = new int[capacity];
+                        firstPositions[i] = new int[capacity];
+                    }
+                    for (; cursors[i] < end; cursors[i]++) {
+                        docIds[i][lengths[i]] = postings[i].docId(cursors[i]);
+                        freqs[i][lengths[i]] = postings[i].freq(cursors[i]);
+                        firstPositions[i][lengths[i]] = postings[i].firstPosition(cursors[i]);
+                        lengths[i]++;
+                    }
+                }
+                for (int q = 0; q < this.keywords.size(); q++) {
+                    List<Word> keywords = this.keywords.get(q);
+                    int[] lists = this.keywordLists[q];
+                    int[] at = new int[lists.length];
+                    int windowDocId;
+                    while ((windowDocId = Batch.nextDoc(docIds, lengths, lists, at)) != Integer.MAX_VALUE) {
+                        // Build the matches of this document in keyword order, like a single search
+                        // Deleted documents and documents without the phrases are skipped, past their entries
+                        boolean skipped = snapshot.deleted.get(windowDocId);
+                        Doc doc = snapshot.docs[windowDocId];
+                        if (!skipped && entries[q] != null) {
+                            for (int k = 0; k < lists.length; k++) {
+                                int list = lists[k];
+                                boolean found = at[k] < lengths[list] && docIds[list][at[k]] == windowDocId;
+                                entries[q][k] = found ? starts[list] + at[k] : -1;
+                            }
+                            if (!Engine.containsPhrases(doc, this.phrases.get(q), queryPostings[q], entries[q])) {
+                                documentCount++;
+                                skipped = true;
+                            }
+                        }
+                        List<Match> matches = new ArrayList<>();
+                        for (int k = 0; k < lists.length; k++) {
+                            int list = lists[k];
+                            if (at[k] < lengths[list] && docIds[list][at[k]] == windowDocId) {
+                                if (!skipped) {
+                                    matches.add(new Match(doc, keywords.get(k), freqs[list][at[k]],
+                                                          firstPositions[list][at[k]]));
+                                }
+                                at[k]++;
+                            }
+                        }
+                        if (!skipped) {
+                            Collections.sort(matches);
+                            documentCount++;
+                            matchCount += matches.size();
+                            results.get(q).add(new Result(doc, matches));
+                        }
+                    }
+                }
+            }
+            timer.count(Metrics.Counter.DOCUMENTS, documentCount);
+            timer.count(Metrics.Counter.MATCHES, matchCount);
+            for (List<Result> queryResults : results) {
+                Collections.sort(queryResults);
+            }
+            return results;
+        }
+
+        /**
+         * Returns the smallest document id at the positions of the decoded entries of the keywords of a query.
+         *
+         * @param docIds  The decoded document ids of every postings list.
+         * @param lengths The number of decoded entries of every postings list.
+         * @param lists   The postings list of every keyword of the query.
+         * @param at      The current position of every keyword in the decoded entries of its list.
+         * @return The next document id, or Integer.MAX_VALUE if all entries are visited.
+         */
+        private static int nextDoc(int[][] docIds, int[] lengths, int[] lists, int[] at) {
+            int docId = Integer.MAX_VALUE;
+            for (int k = 0; k < lists.length; k++) {
+                if (at[k] < lengths[lists[k]]) {
+                    docId = Math.min(docId, docIds[lists[k]][at[k]]);
+                }
+            }
+            return docId;
+        }
+    }
+
+    /**
+     * The state of the engine at one point in time, which searches read without locking. A snapshot is never changed
+     * after it is published: it shares the array of documents and the index with later snapshots, but only reads the
+     * documents before its own count, which are never written again.
+     */
+    private static final class Snapshot {
+        final long version;
+        final Doc[] docs;
+        final int docCount;
+        final InvertedIndex index;
+        final BitSet deleted;
+        final int size;
+
+        /**
+         * Constructs a snapshot.
+         *
+         * @param version  The number of snapshots published before this one.
+         * @param docs     The array of documents, indexed by document id.
+         * @param docCount The number of document ids in use.
+         * @param index    The index of the documents.
+         * @param deleted  The deleted document ids.
+         * @param size     The number of documents which are not deleted.
+         */
+        Snapshot(long version, Doc[] docs, int docCount, InvertedIndex index, BitSet deleted, int size) {
+            this.version = version;
+            this.docs = docs;
+            this.docCount = docCount;
+            this.index = index;
+            this.deleted = deleted;
+            this.size = size;
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package a1_2001040024;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with a fixed relative precision, in the style of HdrHistogram. Every power of two
+ * is split into {@link #SUB_BUCKETS} buckets of equal width, so a value is known within about six percent over the
+ * whole range of long. Recording is lock-free and does not allocate, so many threads can record at the same time.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    /**
+     * Constructs an empty histogram.
+     */
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        this.counts.incrementAndGet(Histogram.bucket(v));
+        this.sum.add(v);
+        this.max.accumulate(v);
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value The non-negative value.
+     * @return The index of the bucket.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> exponent - SUB_BUCKET_BITS) & SUB_BUCKETS - 1;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value which falls into the given bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent - SUB_BUCKET_BITS;
+        return lowest + (1L << exponent - SUB_BUCKET_BITS) - 1;
+    }
+
+    /**
+     * Returns a copy of the recorded values. Values recorded while the copy is made may or may not be included.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, this.sum.sum(), this.max.get());
+    }
+
+    /**
+     * The values of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        /**
+         * Constructs a snapshot.
+         *
+         * @param counts The count of every bucket.
+         * @param count  The number of values.
+         * @param sum    The sum of the values.
+         * @param max    The largest value.
+         */
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of recorded values.
+         *
+         * @return The number of values.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Returns the sum of the recorded values.
+         *
+         * @return The sum of the values.
+         */
+        public long getSum() {
+            return this.sum;
+        }
+
+        /**
+         * Returns the largest recorded value.
+         *
+         * @return The largest value, or 0 if there are none.
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * Returns the mean of the recorded values.
+         *
+         * @return The mean, or 0 if there are none.
+         */
+        public double getMean() {
+            return this.count == 0 ? 0.0 : (double) this.sum / this.count;
+        }
+
+        /**
+         * Returns the value below or at which the given share of the recorded values fall, within the precision of the
+         * histogram.
+         *
+         * @param quantile The share of the values, from 0 to 1.
+         * @return The value at the quantile, or 0 if there are none.
+         */
+        public long getValueAtQuantile(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * this.count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.highestValue(i), this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package a1_2001040024;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the HTML of search results, keyed by the identity of the document and the set of highlighted terms. The
+ * HTML of a result only depends on these two, so a popular document found by a popular query is rendered once. The
+ * cache is bounded by the total size of the cached HTML and evicts the least recently used fragments first.
+ * <p>
+ * Documents are compared by identity, since two equal documents may still differ in case and punctuation. A cached
+ * fragment keeps its document alive until the fragment is evicted.
+ */
+public class HtmlCache {
+    /**
+     * Estimated bytes of an entry and its key, besides the characters of the HTML and the term ids.
+     */
+    private static final int ENTRY_BYTES = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, String> fragments;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private long bytes;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxBytes The maximum estimated memory held by the cached HTML, in bytes.
+     */
+    public HtmlCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.fragments = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Returns the HTML of a result, rendering and caching it if it is not cached yet.
+     *
+     * @param result The result.
+     * @return The HTML of the result, as {@link Result#htmlHighlight()} returns it.
+     */
+    String html(Result result) {
+        Key key = new Key(result.getDoc(), result.getMatchedTerms());
+        String html;
+        synchronized (this) {
+            html = this.fragments.get(key);
+        }
+        if (html != null) {
+            this.hits.incrementAndGet();
+            return html;
+        }
+        this.misses.incrementAndGet();
+        html = result.htmlHighlight();
+        long size = HtmlCache.estimate(key, html);
+        if (size <= this.maxBytes) {
+            synchronized (this) {
+                String previous = this.fragments.put(key, html);
+                this.bytes += size - (previous == null ? 0 : HtmlCache.estimate(key, previous));
+                Iterator<Map.Entry<Key, String>> eldest = this.fragments.entrySet().iterator();
+                while (this.bytes > this.maxBytes) {
+                    Map.Entry<Key, String> entry = eldest.next();
+                    this.bytes -= HtmlCache.estimate(entry.getKey(), entry.getValue());
+                    eldest.remove();
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+        return html;
+    }
+
+    /**
+     * Estimates the memory held by a cached fragment.
+     *
+     * @param key  The key of the fragment.
+     * @param html The HTML of the fragment.
+     * @return The estimated size, in bytes.
+     */
+    private static long estimate(Key key, String html) {
+        return ENTRY_BYTES + 4L * key.terms.length + 2L * html.length();
+    }
+
+    /**
+     * Removes every fragment.
+     */
+    public synchronized void clear() {
+        this.fragments.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * Returns the number of results whose HTML was found in the cache.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of results whose HTML had to be rendered.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the number of fragments evicted to stay within the bound.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Returns the number of cached fragments.
+     *
+     * @return The number of fragments.
+     */
+    public synchronized int size() {
+        return this.fragments.size();
+    }
+
+    /**
+     * Returns the estimated memory held by the cached fragments.
+     *
+     * @return The estimated size, in bytes.
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * The key of a fragment: a document, compared by identity, and the sorted distinct highlighted terms.
+     */
+    private static final class Key {
+        private final Doc doc;
+        private final int[] terms;
+        private final int hash;
+
+        /**
+         * Constructs a key.
+         *
+         * @param doc   The document.
+         * @param terms The sorted distinct term ids of the highlighted terms.
+         */
+        Key(Doc doc, int[] terms) {
+            this.doc = doc;
+            this.terms = terms;
+            this.hash = System.identityHashCode(doc) * 31 + Arrays.hashCode(terms);
+        }
+
+        /**
+         * Returns the hash code of the key.
+         *
+         * @return The hash code.
+         */
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        /**
+         * Compares the key with another object.
+         *
+         * @param o The other object.
+         * @return True if the other object is a key of the same document and terms.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.doc == other.doc && Arrays.equals(this.terms, other.terms);
+        }
+    }
+}
@@ -0,0 +1,1024 @@
+package a1_2001040024;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An in-memory inverted index which maps each term id to the list of documents containing it. For every document in a
+ * postings list, the index keeps the document id, the frequency of the term in the document and the first position of
+ * the term, which is exactly what a Match needs, and every other position of the term, which phrase and proximity
+ * queries intersect. Positions are numbered over the title and then the body.
+ * <p>
+ * The index has a single writer but can be read from any thread while it is written. A postings list never changes
+ * once it is in the index: adding a document replaces it with a longer list, so a reader which got a list keeps
+ * seeing the same entries. Readers which must not see documents added after some point cut the lists with
+ * {@link Postings#head(int)}.
+ */
+class InvertedIndex {
+    /**
+     * The default number of entries in a compressed block of a postings list.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 128;
+
+    private final int blockSize;
+    private volatile AtomicReferenceArray<Postings> postings;
+
+    /**
+     * Constructs an empty index with the default block size.
+     */
+    InvertedIndex() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructs an empty index.
+     *
+     * @param blockSize The number of entries in a compressed block of a postings list.
+     */
+    InvertedIndex(int blockSize) {
+        this(blockSize, TermDictionary.size());
+    }
+
+    /**
+     * Constructs an empty index with room for the term ids below the given limit.
+     *
+     * @param blockSize The number of entries in a compressed block of a postings list.
+     * @param termLimit The number of term ids to make room for.
+     */
+    private InvertedIndex(int blockSize, int termLimit) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.postings = new AtomicReferenceArray<>(termLimit);
+    }
+
+    /**
+     * Adds a document to the index. Document ids must be added in increasing order so that every postings list stays
+     * sorted by document id.
+     *
+     * @param docId The id of the document, which is its position in the engine's list of documents.
+     * @param doc   The document to index.
+     */
+    void add(int docId, Doc doc) {
+        // Collect every position of every term, with the title placed before the body, after the number of positions
+        int[] terms = doc.getTerms();
+        Map<Integer, int[]> positions = new LinkedHashMap<>();
+        for (int position = 0; position < terms.length; position++) {
+            int[] termPositions = positions.get(terms[position]);
+            if (termPositions == null || termPositions[0] == termPositions.length - 1) {
+                termPositions = termPositions == null
+                                ? new int[4]
+                                : Arrays.copyOf(termPositions, termPositions.length * 2);
+                positions.put(terms[position], termPositions);
+            }
+            termPositions[++termPositions[0]] = position;
+        }
+        for (Map.Entry<Integer, int[]> entry : positions.entrySet()) {
+            int termId = entry.getKey();
+            Postings postings = this.get(termId);
+            if (postings == null) {
+                postings = new Postings(this.blockSize);
+            }
+            this.set(termId, postings.append(docId, entry.getValue(), 1, entry.getValue()[0]));
+        }
+    }
+
+    /**
+     * Returns the postings list of the given term, or null if no document contains the term.
+     *
+     * @param termId The id of the term to look up.
+     * @return The postings list of the term, or null if there is none.
+     */
+    Postings get(int termId) {
+        AtomicReferenceArray<Postings> postings = this.postings;
+        return termId < postings.length() ? postings.get(termId) : null;
+    }
+
+    /**
+     * Sets the postings list of the given term, replacing any previous one.
+     *
+     * @param termId   The id of the term.
+     * @param postings The postings list of the term.
+     */
+    void set(int termId, Postings postings) {
+        if (termId >= this.postings.length()) {
+            // Readers still holding the old array only miss terms which are new to them. The array grows with the
+            // terms of this index rather than with the dictionary, which also keeps the terms of removed documents.
+            int length = this.postings.length();
+            AtomicReferenceArray<Postings> grown =
+                    new AtomicReferenceArray<>(Math.max(termId + 1, length + (length >> 1)));
+            for (int i = 0; i < this.postings.length(); i++) {
+                grown.set(i, this.postings.get(i));
+            }
+            this.postings = grown;
+        }
+        this.postings.set(termId, postings);
+    }
+
+    /**
+     * Returns the number of term ids the index has room for. Every term id with a postings list is smaller.
+     *
+     * @return The upper bound of the term ids in the index.
+     */
+    int termLimit() {
+        return this.postings.length();
+    }
+
+    /**
+     * Returns the number of entries in a compressed block of the postings lists of the index.
+     *
+     * @return The block size.
+     */
+    int blockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * Appends every postings list of another index, whose documents come after all documents of this index. A list of
+     * a term which is new to this index is taken over as it is if its document ids need no shifting, so the other
+     * index must not be appended to afterwards.
+     *
+     * @param other The other index.
+     * @param base  The id in this index of the first document of the other index.
+     */
+    void addAll(InvertedIndex other, int base) {
+        for (int termId = 0; termId < other.termLimit(); termId++) {
+            Postings source = other.get(termId);
+            if (source == null) {
+                continue;
+            }
+            Postings target = this.get(termId);
+            if (target == null && base == 0 && source.blockSize == this.blockSize) {
+                this.set(termId, source);
+            } else {
+                this.set(termId, (target == null ? new Postings(this.blockSize) : target).appendAll(source, base));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of this index without the entries of deleted documents and with the remaining ones renumbered.
+     * This index is left unchanged for the readers which still use it. The new ids must keep the order of the old
+     * ones so that every postings list stays sorted. The copy only has room for the term ids up to the largest one
+     * left, so the slots of terms which were only used by the deleted documents are reclaimed.
+     *
+     * @param newIds The new id of every document, or -1 for a deleted document.
+     * @return The compacted index.
+     */
+    InvertedIndex compact(int[] newIds) {
+        Postings[] kept = new Postings[this.termLimit()];
+        int termLimit = 0;
+        for (int termId = 0; termId < kept.length; termId++) {
+            Postings postings = this.get(termId);
+            if (postings != null) {
+                kept[termId] = postings.compact(newIds);
+                if (kept[termId].size() > 0) {
+                    termLimit = termId + 1;
+                }
+            }
+        }
+        InvertedIndex compacted = new InvertedIndex(this.blockSize, termLimit);
+        for (int termId = 0; termId < termLimit; termId++) {
+            if (kept[termId] != null && kept[termId].size() > 0) {
+                compacted.set(termId, kept[termId]);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * A postings list of one term, sorted by document id. The entries are compressed in blocks of a fixed size: the
+     * document ids as gaps, the frequencies and first positions as they are, and the other positions of every entry as
+     * gaps from the position before, each run bit-packed with the number of bits of its largest value.
+     * The last document id and the offset of every block are kept as skip pointers, so a search can jump over the
+     * blocks it does not need. The entries after the last full block are kept in plain arrays until they fill one.
+     * <p>
+     * A postings list is immutable, but its arrays may have room for more entries or blocks, which the next longer
+     * version of the list shares. Only the latest version of a list may be appended to, so the entries of an older
+     * version are never overwritten. Entries are read through a {@link Reader}.
+     */
+    static class Postings {
+        private static final byte[] NO_DATA = new byte[0];
+        private static final int[] NO_BLOCKS = new int[0];
+
+        private final int blockSize;
+        private final byte[] data;
+        private final int dataLength;
+        private final int[] blockLastDocs;
+        private final int[] blockOffsets;
+        private final int blocks;
+        private final int[] tailDocIds;
+        private final int[] tailFreqs;
+        private final int[] tailFirstPositions;
+        private final int[] tailPositions;
+        private final int tailPositionCount;
+        private final int size;
+        // Bounds of all entries, which stay valid for every head of the list
+        private final int maxFreq;
+        private final int minFirstPosition;
+
+        /**
+         * Constructs an empty postings list.
+         *
+         * @param blockSize The number of entries in a compressed block.
+         */
+        Postings(int blockSize) {
+            this(blockSize, NO_DATA, 0, NO_BLOCKS, NO_BLOCKS, 0, new int[4], new int[4], new int[4], new int[4], 0, 0,
+                 0, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Constructs a postings list from its parts.
+         *
+         * @param blockSize          The number of entries in a compressed block.
+         * @param data               The compressed blocks.
+         * @param dataLength         The number of bytes of the compressed blocks.
+         * @param blockLastDocs      The last document id of every block.
+         * @param blockOffsets       The offset in the data of every block.
+         * @param blocks             The number of blocks.
+         * @param tailDocIds         The document ids after the last block.
+         * @param tailFreqs          The frequencies after the last block.
+         * @param tailFirstPositions The first positions after the last block.
+         * @param tailPositions      Every position of every entry after the last block, entry after entry.
+         * @param tailPositionCount  The number of positions after the last block, of all entries of the latest version.
+         * @param size               The number of entries, which may leave out entries at the end.
+         * @param maxFreq            At least the largest frequency.
+         * @param minFirstPosition   At most the smallest first position.
+         */
+        private Postings(int blockSize, byte[] data, int dataLength, int[] blockLastDocs, int[] blockOffsets,
+                         int blocks, int[] tailDocIds, int[] tailFreqs, int[] tailFirstPositions,
+                         int[] tailPositions, int tailPositionCount, int size, int maxFreq, int minFirstPosition) {
+            this.blockSize = blockSize;
+            this.data = data;
+            this.dataLength = dataLength;
+            this.blockLastDocs = blockLastDocs;
+            this.blockOffsets = blockOffsets;
+            this.blocks = blocks;
+            this.tailDocIds = tailDocIds;
+            this.tailFreqs = tailFreqs;
+            this.tailFirstPositions = tailFirstPositions;
+            this.tailPositions = tailPositions;
+            this.tailPositionCount = tailPositionCount;
+            this.size = size;
+            this.maxFreq = maxFreq;
+            this.minFirstPosition = minFirstPosition;
+        }
+
+        /**
+         * Constructs a postings list from plain arrays of its entries.
+         *
+         * @param blockSize The number of entries in a compressed block.
+         * @param docIds    The document ids, in increasing order.
+         * @param freqs     The frequencies.
+         * @param positions Every position of every entry, entry after entry, each in increasing order.
+         * @param size      The number of entries.
+         * @return The postings list.
+         */
+        static Postings of(int blockSize, int[] docIds, int[] freqs, int[] positions, int size) {
+            Appender appender = new Appender(new Postings(blockSize));
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                appender.add(docIds[i], positions, offset, freqs[i]);
+                offset += freqs[i];
+            }
+            appender.trim();
+            return appender.toPostings();
+        }
+
+        /**
+         * Reads a postings list written by {@link #write(DataOutput)}. The compressed blocks and the skip pointers are
+         * copied out as they are, without decoding them.
+         *
+         * @param in        The input of the segment file.
+         * @param blockSize The number of entries in a compressed block, which the list was written with.
+         * @return The postings list.
+         * @throws IllegalArgumentException If the sizes read do not make up a postings list.
+         */
+        static Postings read(ByteBuffer in, int blockSize) {
+            int size = in.getInt();
+            int maxFreq = in.getInt();
+            int minFirstPosition = in.getInt();
+            int blocks = in.getInt();
+            long tailSize = size - (long) blocks * blockSize;
+            if (blocks < 0 || tailSize < 0 || tailSize >= blockSize) {
+                throw new IllegalArgumentException("Invalid postings list of " + size + " entries in " + blocks
+                                                   + " blocks");
+            }
+            byte[] data = new byte[in.getInt()];
+            in.get(data);
+            int[] blockLastDocs = SegmentFile.readInts(in, blocks);
+            int[] blockOffsets = SegmentFile.readInts(in, blocks);
+            int[] tailDocIds = SegmentFile.readInts(in, (int) tailSize);
+            int[] tailFreqs = SegmentFile.readInts(in, (int) tailSize);
+            int[] tailFirstPositions = SegmentFile.readInts(in, (int) tailSize);
+            int[] tailPositions = SegmentFile.readInts(in, in.getInt());
+            return new Postings(blockSize, data, data.length, blockLastDocs, blockOffsets, blocks, tailDocIds,
+                                tailFreqs, tailFirstPositions, tailPositions, tailPositions.length, size, maxFreq,
+                                minFirstPosition);
+        }
+
+        /**
+         * Writes the compressed blocks, the skip pointers and the entries after the last block to a segment file. The
+         * list must be the latest version, with all of its entries.
+         *
+         * @param out The output of the segment file.
+         * @throws IOException If the output fails.
+         */
+        void write(DataOutput out) throws IOException {
+            int tailSize = this.size - this.blocks * this.blockSize;
+            out.writeInt(this.size);
+            out.writeInt(this.maxFreq);
+            out.writeInt(this.minFirstPosition);
+            out.writeInt(this.blocks);
+            out.writeInt(this.dataLength);
+            out.write(this.data, 0, this.dataLength);
+            for (int b = 0; b < this.blocks; b++) {
+                out.writeInt(this.blockLastDocs[b]);
+            }
+            for (int b = 0; b < this.blocks; b++) {
+                out.writeInt(this.blockOffsets[b]);
+            }
+            for (int i = 0; i < tailSize; i++) {
+                out.writeInt(this.tailDocIds[i]);
+            }
+            for (int i = 0; i < tailSize; i++) {
+                out.writeInt(this.tailFreqs[i]);
+            }
+            for (int i = 0; i < tailSize; i++) {
+                out.writeInt(this.tailFirstPositions[i]);
+            }
+            out.writeInt(this.tailPositionCount);
+            for (int i = 0; i < this.tailPositionCount; i++) {
+                out.writeInt(this.tailPositions[i]);
+            }
+        }
+
+        /**
+         * Returns this postings list with an entry appended.
+         *
+         * @param docId     The id of the document.
+         * @param positions The array which holds the positions of the term in the document.
+         * @param offset    The index of the first position in the array.
+         * @param freq      The frequency of the term in the document, which is the number of positions.
+         * @return The longer postings list.
+         */
+        Postings append(int docId, int[] positions, int offset, int freq) {
+            Appender appender = new Appender(this);
+            appender.add(docId, positions, offset, freq);
+            return appender.toPostings();
+        }
+
+        /**
+         * Returns this postings list with every entry of another postings list appended, shifting its document ids by
+         * the given base.
+         *
+         * @param other The other postings list, whose documents come after all documents of this one.
+         * @param base  The amount to add to the document ids of the other postings list.
+         * @return The longer postings list.
+         */
+        Postings appendAll(Postings other, int base) {
+            Appender appender = new Appender(this);
+            Reader reader = other.reader();
+            int[] positions = new int[other.maxFreq];
+            for (int i = 0; i < other.size; i++) {
+                appender.add(base + reader.docId(i), positions, 0, reader.positions(i, positions));
+            }
+            return appender.toPostings();
+        }
+
+        /**
+         * Returns a copy of this postings list without the entries of deleted documents and with the remaining ones
+         * renumbered.
+         *
+         * @param newIds The new id of every document, or -1 for a deleted document.
+         * @return The compacted postings list.
+         */
+        Postings compact(int[] newIds) {
+            Appender appender = new Appender(new Postings(this.blockSize));
+            Reader reader = this.reader();
+            int[] positions = new int[this.maxFreq];
+            for (int i = 0; i < this.size; i++) {
+                int docId = newIds[reader.docId(i)];
+                if (docId >= 0) {
+                    appender.add(docId, positions, 0, reader.positions(i, positions));
+                }
+            }
+            appender.trim();
+            return appender.toPostings();
+        }
+
+        /**
+         * Returns the entries of the documents whose id is smaller than the given limit.
+         *
+         * @param docLimit The limit of the document ids.
+         * @return This postings list, or a shorter one sharing its arrays.
+         */
+        Postings head(int docLimit) {
+            int sealed = this.blocks * this.blockSize;
+            // The last document id is known without decoding if the list ends after the tail or after a block
+            if (this.size == 0 || this.size > sealed && this.tailDocIds[this.size - sealed - 1] < docLimit
+                || this.size == sealed && this.blockLastDocs[this.blocks - 1] < docLimit) {
+                return this;
+            }
+            int size = this.reader().advance(0, docLimit);
+            if (size == this.size) {
+                return this;
+            }
+            return new Postings(this.blockSize, this.data, this.dataLength, this.blockLastDocs, this.blockOffsets,
+                                this.blocks, this.tailDocIds, this.tailFreqs, this.tailFirstPositions,
+                                this.tailPositions, this.tailPositionCount, size, this.maxFreq,
+                                this.minFirstPosition);
+        }
+
+        /**
+         * Returns a new reader of the entries.
+         *
+         * @return The reader.
+         */
+        Reader reader() {
+            return new Reader(this);
+        }
+
+        /**
+         * Returns the number of documents in the postings list.
+         *
+         * @return The number of documents.
+         */
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * Returns an upper bound of the frequencies of the entries.
+         *
+         * @return At least the largest frequency, or 0 if there are no entries.
+         */
+        int maxFreq() {
+            return this.maxFreq;
+        }
+
+        /**
+         * Returns a lower bound of the first positions of the entries.
+         *
+         * @return At most the smallest first position, or Integer.MAX_VALUE if there are no entries.
+         */
+        int minFirstPosition() {
+            return this.minFirstPosition;
+        }
+
+        /**
+         * Estimates the memory held by the postings list, including the room for more entries.
+         *
+         * @return The estimated size, in bytes.
+         */
+        long memoryBytes() {
+            return 80 + this.data.length + 4L * (this.blockLastDocs.length + this.blockOffsets.length)
+                   + 12L * this.tailDocIds.length + 4L * this.tailPositions.length;
+        }
+
+        /**
+         * Appends entries to a postings list, building the next version of it. The appender writes into the arrays of
+         * the list only after its entries, and replaces the arrays which are full, so the list is left unchanged.
+         */
+        private static final class Appender {
+            private final int blockSize;
+            private byte[] data;
+            private int dataLength;
+            private int[] blockLastDocs;
+            private int[] blockOffsets;
+            private int blocks;
+            private int[] tailDocIds;
+            private int[] tailFreqs;
+            private int[] tailFirstPositions;
+            private int[] tailPositions;
+            private int tailSize;
+            private int tailPositionCount;
+            private boolean tailShared;
+            private boolean tailPositionsShared;
+            private int maxFreq;
+            private int minFirstPosition;
+
+            /**
+             * Constructs an appender after the entries of a postings list.
+             *
+             * @param postings The latest version of the postings list, with all of its entries.
+             */
+            Appender(Postings postings) {
+                this.blockSize = postings.blockSize;
+                this.data = postings.data;
+                this.dataLength = postings.dataLength;
+                this.blockLastDocs = postings.blockLastDocs;
+                this.blockOffsets = postings.blockOffsets;
+                this.blocks = postings.blocks;
+                this.tailDocIds = postings.tailDocIds;
+                this.tailFreqs = postings.tailFreqs;
+                this.tailFirstPositions = postings.tailFirstPositions;
+                this.tailPositions = postings.tailPositions;
+                this.tailSize = postings.size - postings.blocks * postings.blockSize;
+                this.tailPositionCount = postings.tailPositionCount;
+                this.tailShared = true;
+                this.tailPositionsShared = true;
+                this.maxFreq = postings.maxFreq;
+                this.minFirstPosition = postings.minFirstPosition;
+            }
+
+            /**
+             * Appends an entry.
+             *
+             * @param docId     The id of the document, larger than the ids of all entries so far.
+             * @param positions The array which holds the positions of the term in the document, in increasing order.
+             * @param offset    The index of the first position in the array.
+             * @param freq      The frequency of the term in the document, which is the number of positions.
+             */
+            void add(int docId, int[] positions, int offset, int freq) {
+                if (this.tailSize == this.tailDocIds.length) {
+                    int capacity = Math.min(this.blockSize, Math.max(4, this.tailSize * 2));
+                    this.tailDocIds = Arrays.copyOf(this.tailDocIds, capacity);
+                    this.tailFreqs = Arrays.copyOf(this.tailFreqs, capacity);
+                    this.tailFirstPositions = Arrays.copyOf(this.tailFirstPositions, capacity);
+                    this.tailShared = false;
+                }
+                if (this.tailPositionCount + freq > this.tailPositions.length) {
+                    this.tailPositions = Arrays.copyOf(this.tailPositions,
+                                                       Math.max(this.tailPositionCount + freq,
+                                                                this.tailPositions.length * 2));
+                    this.tailPositionsShared = false;
+                }
+                this.tailDocIds[this.tailSize] = docId;
+                this.tailFreqs[this.tailSize] = freq;
+                this.tailFirstPositions[this.tailSize] = positions[offset];
+                System.arraycopy(positions, offset, this.tailPositions, this.tailPositionCount, freq);
+                this.tailSize++;
+                this.tailPositionCount += freq;
+                this.maxFreq = Math.max(this.maxFreq, freq);
+                this.minFirstPosition = Math.min(this.minFirstPosition, positions[offset]);
+                if (this.tailSize == this.blockSize) {
+                    this.seal();
+                }
+            }
+
+            /**
+             * Compresses the full tail into a new block and starts an empty tail.
+             */
+            private void seal() {
+                if (this.blocks == this.blockLastDocs.length) {
+                    int capacity = Math.max(4, this.blocks * 2);
+                    this.blockLastDocs = Arrays.copyOf(this.blockLastDocs, capacity);
+                    this.blockOffsets = Arrays.copyOf(this.blockOffsets, capacity);
+                }
+                // The positions after the first one of every entry, as gaps from the position before
+                int[] positionGaps = new int[this.tailPositionCount - this.blockSize];
+                int gapCount = 0;
+                for (int i = 0, position = 0; i < this.blockSize; i++) {
+                    for (int end = position + this.tailFreqs[i]; ++position < end; ) {
+                        positionGaps[gapCount++] = this.tailPositions[position] - this.tailPositions[position - 1] - 1;
+                    }
+                }
+                // A run takes one byte for its width and at most four bytes per value
+                long needed = this.dataLength + 4 + 12L * this.blockSize + 4L * gapCount;
+                if (needed > this.data.length) {
+                    this.data = Arrays.copyOf(this.data, (int) Math.min(Math.max(needed, this.data.length * 2L),
+                                                                        Integer.MAX_VALUE - 8));
+                }
+                int[] gaps = new int[this.blockSize];
+                int previous = this.blocks == 0 ? -1 : this.blockLastDocs[this.blocks - 1];
+                for (int i = 0; i < this.blockSize; i++) {
+                    gaps[i] = this.tailDocIds[i] - previous - 1;
+                    previous = this.tailDocIds[i];
+                }
+                int offset = Postings.pack(this.data, this.dataLength, gaps, this.blockSize);
+                offset = Postings.pack(this.data, offset, this.tailFreqs, this.blockSize);
+                offset = Postings.pack(this.data, offset, this.tailFirstPositions, this.blockSize);
+                offset = Postings.pack(this.data, offset, positionGaps, gapCount);
+                this.blockLastDocs[this.blocks] = previous;
+                this.blockOffsets[this.blocks] = this.dataLength;
+                this.blocks++;
+                this.dataLength = offset;
+                if (this.tailShared) {
+                    // The tail arrays belong to the list appended to, or to a version built before
+                    this.tailDocIds = new int[4];
+                    this.tailFreqs = new int[4];
+                    this.tailFirstPositions = new int[4];
+                    this.tailShared = false;
+                }
+                if (this.tailPositionsShared) {
+                    this.tailPositions = new int[4];
+                    this.tailPositionsShared = false;
+                }
+                this.tailSize = 0;
+                this.tailPositionCount = 0;
+            }
+
+            /**
+             * Shrinks the compressed data and the skip pointers to their used length, for a list which is built at once
+             * rather than grown.
+             */
+            void trim() {
+                if (this.dataLength < this.data.length) {
+                    this.data = Arrays.copyOf(this.data, this.dataLength);
+                }
+                if (this.blocks < this.blockLastDocs.length) {
+                    this.blockLastDocs = Arrays.copyOf(this.blockLastDocs, this.blocks);
+                    this.blockOffsets = Arrays.copyOf(this.blockOffsets, this.blocks);
+                }
+            }
+
+            /**
+             * Returns the postings list with all appended entries.
+             *
+             * @return The longer postings list.
+             */
+            Postings toPostings() {
+                // The returned list shares the tail arrays, so the next seal must not reuse them
+                this.tailShared = true;
+                this.tailPositionsShared = true;
+                return new Postings(this.blockSize, this.data, this.dataLength, this.blockLastDocs,
+                                    this.blockOffsets, this.blocks, this.tailDocIds, this.tailFreqs,
+                                    this.tailFirstPositions, this.tailPositions, this.tailPositionCount,
+                                    this.blocks * this.blockSize + this.tailSize, this.maxFreq,
+                                    this.minFirstPosition);
+            }
+        }
+
+        /**
+         * Writes a run of non-negative integers bit-packed: one byte with the number of bits of the largest of them,
+         * then every integer with that many bits, lowest bits first.
+         *
+         * @param data   The array to write to.
+         * @param offset The offset to write at.
+         * @param values The integers.
+         * @param count  The number of integers.
+         * @return The offset after the written bytes.
+         */
+        private static int pack(byte[] data, int offset, int[] values, int count) {
+            int max = 0;
+            for (int i = 0; i < count; i++) {
+                max |= values[i];
+            }
+            int width = 32 - Integer.numberOfLeadingZeros(max);
+            data[offset++] = (byte) width;
+            long buffer = 0;
+            int bits = 0;
+            for (int i = 0; i < count; i++) {
+                buffer |= (values[i] & 0xFFFFFFFFL) << bits;
+                bits += width;
+                while (bits >= 8) {
+                    data[offset++] = (byte) buffer;
+                    buffer >>>= 8;
+                    bits -= 8;
+                }
+            }
+            if (bits > 0) {
+                data[offset++] = (byte) buffer;
+            }
+            return offset;
+        }
+
+        /**
+         * Reads the entries of a postings list by index. The reader decodes one block at a time into its own buffers
+         * and keeps the last decoded block, so reading the entries in order decodes every block once, and decoding does
+         * not allocate. A reader is used by one thread at a time.
+         */
+        static final class Reader {
+            private final Postings postings;
+            private final int blockSize;
+            private final int size;
+            private int[] blockDocIds;
+            private int[] blockFreqs;
+            private int[] blockFirstPositions;
+            private int[] blockPositionGaps;
+            // Index of the first position of every entry of the current block or tail, after the first positions for
+            // a block, which keeps only the gaps of the other ones
+            private int[] positionStarts;
+            // The entries [base, base + length) are in these arrays, which are either the buffers or the tail
+            private int[] docIds;
+            private int[] freqs;
+            private int[] firstPositions;
+            private int base;
+            private int length;
+            // The frequencies and first positions of a block are only decoded once they are read
+            private boolean valuesLoaded;
+            private int valuesOffset;
+            // The other positions are only decoded once positions are read
+            private boolean positionsLoaded;
+            private int positionsOffset;
+            private boolean tail;
+
+            /**
+             * Constructs a reader of a postings list.
+             *
+             * @param postings The postings list.
+             */
+            Reader(Postings postings) {
+                this.postings = postings;
+                this.blockSize = postings.blockSize;
+                this.size = postings.size;
+            }
+
+            /**
+             * Returns the number of entries.
+             *
+             * @return The number of entries.
+             */
+            int size() {
+                return this.size;
+            }
+
+            /**
+             * Returns an upper bound of the frequencies of the entries.
+             *
+             * @return At least the largest frequency.
+             */
+            int maxFreq() {
+                return this.postings.maxFreq;
+            }
+
+            /**
+             * Returns a lower bound of the first positions of the entries.
+             *
+             * @return At most the smallest first position.
+             */
+            int minFirstPosition() {
+                return this.postings.minFirstPosition;
+            }
+
+            /**
+             * Returns the document id of the entry at the given index.
+             *
+             * @param i The index of the entry, smaller than the size.
+             * @return The document id.
+             */
+            int docId(int i) {
+                int j = i - this.base;
+                if (j < 0 || j >= this.length) {
+                    this.load(i);
+                    j = i - this.base;
+                }
+                return this.docIds[j];
+            }
+
+            /**
+             * Returns the frequency of the entry at the given index.
+             *
+             * @param i The index of the entry, smaller than the size.
+             * @return The frequency.
+             */
+            int freq(int i) {
+                int j = i - this.base;
+                if (j < 0 || j >= this.length) {
+                    this.load(i);
+                    j = i - this.base;
+                }
+                if (!this.valuesLoaded) {
+                    this.loadValues();
+                }
+                return this.freqs[j];
+            }
+
+            /**
+             * Returns the first position of the entry at the given index.
+             *
+             * @param i The index of the entry, smaller than the size.
+             * @return The first position.
+             */
+            int firstPosition(int i) {
+                int j = i - this.base;
+                if (j < 0 || j >= this.length) {
+                    this.load(i);
+                    j = i - this.base;
+                }
+                if (!this.valuesLoaded) {
+                    this.loadValues();
+                }
+                return this.firstPositions[j];
+            }
+
+            /**
+             * Copies every position of the entry at the given index.
+             *
+             * @param i      The index of the entry, smaller than the size.
+             * @param target The array to copy into, with room for at least the frequency of the entry.
+             * @return The number of positions, which is the frequency of the entry.
+             */
+            int positions(int i, int[] target) {
+                int j = i - this.base;
+                if (j < 0 || j >= this.length) {
+                    this.load(i);
+                    j = i - this.base;
+                }
+                if (!this.valuesLoaded) {
+                    this.loadValues();
+                }
+                if (!this.positionsLoaded) {
+                    this.loadPositions();
+                }
+                int freq = this.freqs[j];
+                int start = this.positionStarts[j];
+                if (this.tail) {
+                    System.arraycopy(this.postings.tailPositions, start, target, 0, freq);
+                } else {
+                    int position = this.firstPositions[j];
+                    target[0] = position;
+                    for (int n = 1; n < freq; n++) {
+                        position += this.blockPositionGaps[start + n - 1] + 1;
+                        target[n] = position;
+                    }
+                }
+                return freq;
+            }
+
+            /**
+             * Returns the index of the entry of the given document.
+             *
+             * @param docId The id of the document.
+             * @return The index of the entry, or (-(insertion point) - 1) if the document is not in the postings list.
+             */
+            int indexOf(int docId) {
+                int entry = this.advance(0, docId);
+                return entry < this.size && this.docId(entry) == docId ? entry : -entry - 1;
+            }
+
+            /**
+             * Returns the index of the first entry at or after the given index whose document id is at least the
+             * given one. Blocks which end before the document are skipped by their skip pointers without decoding
+             * them.
+             *
+             * @param from  The index to start from.
+             * @param docId The id of the document.
+             * @return The index of the entry, or the size if there is none.
+             */
+            int advance(int from, int docId) {
+                if (from >= this.size) {
+                    return this.size;
+                }
+                int j = from - this.base;
+                if (j < 0 || j >= this.length) {
+                    int block = from / this.blockSize;
+                    if (block < this.postings.blocks && this.postings.blockLastDocs[block] < docId) {
+                        return this.seek(block + 1, docId);
+                    }
+                    this.load(from);
+                    j = from - this.base;
+                }
+                if (this.docIds[this.length - 1] < docId) {
+                    return this.seek(this.base / this.blockSize + 1, docId);
+                }
+                return this.base + Reader.gallop(this.docIds, j, this.length, docId);
+            }
+
+            /**
+             * Returns the index of the first entry whose document id is at least the given one, given that every entry
+             * before the given block has a smaller one.
+             *
+             * @param block The first block which may contain the document, or the number of blocks for the tail.
+             * @param docId The id of the document.
+             * @return The index of the entry, or the size if there is none.
+             */
+            private int seek(int block, int docId) {
+                Postings p = this.postings;
+                int visibleBlocks = Math.min(p.blocks, (this.size + this.blockSize - 1) / this.blockSize);
+                if (block < visibleBlocks) {
+                    block = Reader.gallop(p.blockLastDocs, block, visibleBlocks, docId);
+                }
+                if ((long) block * this.blockSize >= this.size) {
+                    return this.size;
+                }
+                this.load(block * this.blockSize);
+                if (this.docIds[this.length - 1] < docId) {
+                    return this.size;
+                }
+                return this.base + Reader.gallop(this.docIds, 0, this.length, docId);
+            }
+
+            /**
+             * Returns the index of the first value in a sorted range which is at least the given one. The search
+             * gallops from the start of the range, so finding a value near the start is cheap.
+             *
+             * @param values The sorted values.
+             * @param from   The start of the range, inclusive.
+             * @param to     The end of the range, exclusive.
+             * @param value  The value to find.
+             * @return The index of the value, or the end of the range if all values are smaller.
+             */
+            private static int gallop(int[] values, int from, int to, int value) {
+                int low = from;
+                int step = 1;
+                while (low < to && values[low] < value) {
+                    // values[low] is too small, look further by doubling steps
+                    int next = low + step;
+                    if (next >= to || values[next] >= value) {
+                        int entry = Arrays.binarySearch(values, low + 1, Math.min(next, to), value);
+                        return entry >= 0 ? entry : -entry - 1;
+                    }
+                    low = next;
+                    step <<= 1;
+                }
+                return low;
+            }
+
+            /**
+             * Makes the block or tail which contains the given entry the current one.
+             *
+             * @param i The index of the entry, smaller than the size.
+             */
+            private void load(int i) {
+                Postings p = this.postings;
+                int block = i / this.blockSize;
+                this.base = block * this.blockSize;
+                this.length = Math.min(this.blockSize, this.size - this.base);
+                this.positionsLoaded = false;
+                this.tail = block >= p.blocks;
+                if (this.tail) {
+                    this.docIds = p.tailDocIds;
+                    this.freqs = p.tailFreqs;
+                    this.firstPositions = p.tailFirstPositions;
+                    this.valuesLoaded = true;
+                    return;
+                }
+                if (this.blockDocIds == null) {
+                    this.blockDocIds = new int[this.blockSize];
+                    this.blockFreqs = new int[this.blockSize];
+                    this.blockFirstPositions = new int[this.blockSize];
+                }
+                this.docIds = this.blockDocIds;
+                this.freqs = this.blockFreqs;
+                this.firstPositions = this.blockFirstPositions;
+                this.valuesOffset = this.decode(this.blockDocIds, p.blockOffsets[block], this.blockSize);
+                this.valuesLoaded = false;
+                int previous = block == 0 ? -1 : p.blockLastDocs[block - 1];
+                for (int n = 0; n < this.blockSize; n++) {
+                    previous += this.blockDocIds[n] + 1;
+                    this.blockDocIds[n] = previous;
+                }
+            }
+
+            /**
+             * Decodes the frequencies and first positions of the current block.
+             */
+            private void loadValues() {
+                int offset = this.decode(this.blockFreqs, this.valuesOffset, this.blockSize);
+                this.positionsOffset = this.decode(this.blockFirstPositions, offset, this.blockSize);
+                this.valuesLoaded = true;
+            }
+
+            /**
+             * Finds where the positions of every entry of the current block or tail start, and decodes the gaps of the
+             * positions of a block.
+             */
+            private void loadPositions() {
+                if (this.positionStarts == null) {
+                    this.positionStarts = new int[this.blockSize];
+                }
+                int start = 0;
+                for (int n = 0; n < this.length; n++) {
+                    this.positionStarts[n] = start;
+                    // A block keeps the first position of every entry apart
+                    start += this.tail ? this.freqs[n] : this.freqs[n] - 1;
+                }
+                if (!this.tail) {
+                    if (this.blockPositionGaps == null || this.blockPositionGaps.length < start) {
+                        this.blockPositionGaps = new int[Math.max(start, 2 * this.blockSize)];
+                    }
+                    this.decode(this.blockPositionGaps, this.positionsOffset, start);
+                }
+                this.positionsLoaded = true;
+            }
+
+            /**
+             * Decodes one bit-packed run of integers.
+             *
+             * @param target The array to decode into.
+             * @param offset The offset of the run in the data.
+             * @param count  The number of integers in the run.
+             * @return The offset after the run.
+             */
+            private int decode(int[] target, int offset, int count) {
+                byte[] data = this.postings.data;
+                int width = data[offset++];
+                if (width == 0) {
+                    Arrays.fill(target, 0, count, 0);
+                    return offset;
+                }
+                long mask = (1L << width) - 1;
+                long buffer = 0;
+                int bits = 0;
+                for (int n = 0; n < count; n++) {
+                    while (bits < width) {
+                        buffer |= (data[offset++] & 0xFFL) << bits;
+                        bits += 8;
+                    }
+                    target[n] = (int) (buffer & mask);
+                    buffer >>>= width;
+                    bits -= width;
+                }
+                return offset;
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package a1_2001040024;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the stages of the search pipeline. Recording is lock-free and costs a few clock
+ * reads per search, so the metrics can stay on in production. Optionally, the bytes allocated by the searching thread
+ * in every stage are recorded too, where the JVM supports it. Work done on other threads, like the shards of a parallel
+ * search, is timed as a whole by the searching thread, but its allocations are not counted.
+ */
+public class Metrics {
+    /**
+     * The stages of the search pipeline.
+     */
+    public enum Stage {
+        /**
+         * Splitting a search phrase into keywords.
+         */
+        QUERY,
+        /**
+         * Looking up the postings lists of the keywords, or the results in the query cache.
+         */
+        LOOKUP,
+        /**
+         * Walking the postings lists, which ranks the documents and, for a full search, builds their results.
+         */
+        MATCH,
+        /**
+         * Building the results of a page.
+         */
+        RESULTS,
+        /**
+         * Sorting the results.
+         */
+        SORT,
+        /**
+         * Rendering the results as HTML.
+         */
+        HTML
+    }
+
+    /**
+     * The counters of the search pipeline.
+     */
+    public enum Counter {
+        /**
+         * Searches run.
+         */
+        SEARCHES,
+        /**
+         * Documents visited while walking the postings lists.
+         */
+        DOCUMENTS,
+        /**
+         * Matches built for the results.
+         */
+        MATCHES,
+        /**
+         * Results returned by the searches.
+         */
+        RESULTS,
+        /**
+         * Results rendered as HTML.
+         */
+        HTML_RESULTS
+    }
+
+    private static final Timer DISABLED = new Timer(null, false);
+    private static final ThreadLocal<Timer> TRACED = new ThreadLocal<>();
+
+    private final Map<Stage, Histogram> latencies;
+    private final Map<Stage, Histogram> allocations;
+    private final Map<Counter, LongAdder> counters;
+    private final com.sun.management.ThreadMXBean threads;
+
+    /**
+     * Constructs metrics which record the latency of every stage.
+     */
+    public Metrics() {
+        this(false);
+    }
+
+    /**
+     * Constructs metrics which record the latency of every stage and, if requested and supported by the JVM, the bytes
+     * allocated in every stage.
+     *
+     * @param allocations True to record the allocated bytes too.
+     */
+    public Metrics(boolean allocations) {
+        this.latencies = new EnumMap<>(Stage.class);
+        this.allocations = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            this.latencies.put(stage, new Histogram());
+            this.allocations.put(stage, new Histogram());
+        }
+        this.counters = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            this.counters.put(counter, new LongAdder());
+        }
+        this.threads = allocations ? Metrics.allocationBean() : null;
+    }
+
+    /**
+     * Returns the thread bean which measures allocated bytes, if the JVM has one and it is enabled.
+     *
+     * @return The thread bean, or null if allocations cannot be measured.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+            // System.out.println("Allocated bytes cannot be measured: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Starts timing the stages of one search in the current thread.
+     *
+     * @param metrics The metrics to record into, or null to record nothing.
+     * @return The timer.
+     */
+    static Timer start(Metrics metrics) {
+        return Metrics.start(metrics, false);
+    }
+
+    /**
+     * Starts timing the stages of one search in the current thread, optionally keeping a trace of the search. A traced
+     * timer reuses the buffers of the previous traced search of the thread, once that search has called
+     * {@link Timer#finish()}, so tracing every search does not allocate.
+     *
+     * @param metrics The metrics to record into, or null.
+     * @param trace   True to keep the duration of every stage and the counts of this search in the timer.
+     * @return The timer.
+     */
+    static Timer start(Metrics metrics, boolean trace) {
+        if (!trace) {
+            return metrics == null ? DISABLED : new Timer(metrics, false);
+        }
+        Timer timer = TRACED.get();
+        if (timer == null || timer.running) {
+            // The search which uses the buffers of the thread is still running around this one, or failed before it
+            // finished, so it keeps them and this search takes new ones
+            timer = new Timer(null, true);
+            TRACED.set(timer);
+        }
+        timer.restart(metrics);
+        return timer;
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param counter The counter.
+     * @param amount  The amount to add.
+     */
+    void count(Counter counter, long amount) {
+        this.counters.get(counter).add(amount);
+    }
+
+    /**
+     * Returns the latencies, allocations and counters recorded so far.
+     *
+     * @return The snapshot.
+     */
+    public MetricsSnapshot snapshot() {
+        Map<Stage, Histogram.Snapshot> latencies = new EnumMap<>(Stage.class);
+        Map<Stage, Histogram.Snapshot> allocations = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, this.latencies.get(stage).snapshot());
+            if (this.threads != null) {
+                allocations.put(stage, this.allocations.get(stage).snapshot());
+            }
+        }
+        Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, this.counters.get(counter).sum());
+        }
+        return new MetricsSnapshot(latencies, allocations, counters);
+    }
+
+    /**
+     * Hands a snapshot of the metrics to an exporter.
+     *
+     * @param exporter The exporter.
+     */
+    public void export(MetricsExporter exporter) {
+        exporter.export(this.snapshot());
+    }
+
+    /**
+     * Times the stages of one search, one after another, in the thread which started it. Only counters may be added to
+     * from other threads. A traced timer also keeps the duration of every stage and the counts of its own search.
+     */
+    static final class Timer {
+        private final long[] durations;
+        private final AtomicLongArray counts;
+        private Metrics metrics;
+        private boolean enabled;
+        private boolean running;
+        private long start;
+        private long time;
+        private long allocated;
+
+        /**
+         * Constructs a timer and starts the first stage.
+         *
+         * @param metrics The metrics to record into, or null.
+         * @param trace   True to keep a trace of the search.
+         */
+        Timer(Metrics metrics, boolean trace) {
+            this.durations = trace ? new long[Stage.values().length] : null;
+            this.counts = trace ? new AtomicLongArray(Counter.values().length) : null;
+            this.restart(metrics);
+        }
+
+        /**
+         * Clears the trace and starts the first stage of a new search.
+         *
+         * @param metrics The metrics to record into, or null.
+         */
+        private void restart(Metrics metrics) {
+            this.metrics = metrics;
+            this.enabled = metrics != null || this.durations != null;
+            if (this.durations != null) {
+                Arrays.fill(this.durations, 0);
+                for (int i = 0; i < this.counts.length(); i++) {
+                    this.counts.set(i, 0);
+                }
+            }
+            this.running = true;
+            this.start = this.enabled ? System.nanoTime() : 0;
+            this.time = this.start;
+            this.allocated = this.allocatedBytes();
+        }
+
+        /**
+         * Ends the search, after which the trace must no longer be read, so the next traced search of the thread can
+         * reuse the buffers of this timer.
+         */
+        void finish() {
+            this.running = false;
+        }
+
+        /**
+         * Records the stage which just ended and starts the next one.
+         *
+         * @param stage The stage which just ended.
+         * @return The duration of the stage in nanoseconds, or 0 if nothing is recorded.
+         */
+        long lap(Stage stage) {
+            if (!this.enabled) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long duration = now - this.time;
+            this.time = now;
+            if (this.durations != null) {
+                this.durations[stage.ordinal()] += duration;
+            }
+            if (this.metrics != null) {
+                this.metrics.latencies.get(stage).record(duration);
+                if (this.metrics.threads != null) {
+                    long allocated = this.allocatedBytes();
+                    this.metrics.allocations.get(stage).record(allocated - this.allocated);
+                    this.allocated = allocated;
+                }
+            }
+            return duration;
+        }
+
+        /**
+         * Adds to a counter. This may be called from any thread.
+         *
+         * @param counter The counter.
+         * @param amount  The amount to add.
+         */
+        void count(Counter counter, long amount) {
+            if (this.counts != null) {
+                this.counts.addAndGet(counter.ordinal(), amount);
+            }
+            if (this.metrics != null) {
+                this.metrics.count(counter, amount);
+            }
+        }
+
+        /**
+         * Returns the time from the start of the timer to the end of the last stage.
+         *
+         * @return The elapsed time in nanoseconds.
+         */
+        long elapsed() {
+            return this.time - this.start;
+        }
+
+        /**
+         * Returns the traced duration of a stage.
+         *
+         * @param stage The stage.
+         * @return The duration in nanoseconds, or 0 if the timer is not traced.
+         */
+        long duration(Stage stage) {
+            return this.durations == null ? 0 : this.durations[stage.ordinal()];
+        }
+
+        /**
+         * Returns the traced count of a counter.
+         *
+         * @param counter The counter.
+         * @return The count, or 0 if the timer is not traced.
+         */
+        long count(Counter counter) {
+            return this.counts == null ? 0 : this.counts.get(counter.ordinal());
+        }
+
+        /**
+         * Returns the bytes allocated by the current thread so far.
+         *
+         * @return The allocated bytes, or 0 if they are not measured.
+         */
+        private long allocatedBytes() {
+            com.sun.management.ThreadMXBean threads = this.metrics == null ? null : this.metrics.threads;
+            return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package a1_2001040024;
+
+/**
+ * Receives snapshots of the metrics of an engine, for example to publish them to a monitoring system.
+ */
+public interface MetricsExporter {
+    /**
+     * Exports a snapshot of the metrics.
+     *
+     * @param snapshot The snapshot.
+     */
+    void export(MetricsSnapshot snapshot);
+}
@@ -0,0 +1,106 @@
+package a1_2001040024;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The metrics of the search pipeline at one point in time: the latency of every stage in nanoseconds, the bytes
+ * allocated in every stage if they are recorded, and the counters.
+ */
+public class MetricsSnapshot {
+    private final Map<Metrics.Stage, Histogram.Snapshot> latencies;
+    private final Map<Metrics.Stage, Histogram.Snapshot> allocations;
+    private final Map<Metrics.Counter, Long> counters;
+
+    /**
+     * Constructs a snapshot.
+     *
+     * @param latencies   The latency of every stage.
+     * @param allocations The allocated bytes of every stage, or an empty map if they are not recorded.
+     * @param counters    The value of every counter.
+     */
+    MetricsSnapshot(Map<Metrics.Stage, Histogram.Snapshot> latencies,
+                    Map<Metrics.Stage, Histogram.Snapshot> allocations, Map<Metrics.Counter, Long> counters) {
+        this.latencies = latencies;
+        this.allocations = allocations;
+        this.counters = counters;
+    }
+
+    /**
+     * Returns the latencies of a stage, in nanoseconds.
+     *
+     * @param stage The stage.
+     * @return The histogram of the latencies.
+     */
+    public Histogram.Snapshot getLatency(Metrics.Stage stage) {
+        return this.latencies.get(stage);
+    }
+
+    /**
+     * Returns the bytes allocated in a stage.
+     *
+     * @param stage The stage.
+     * @return The histogram of the allocated bytes, or null if they are not recorded.
+     */
+    public Histogram.Snapshot getAllocation(Metrics.Stage stage) {
+        return this.allocations.get(stage);
+    }
+
+    /**
+     * Returns the value of a counter.
+     *
+     * @param counter The counter.
+     * @return The value.
+     */
+    public long getCount(Metrics.Counter counter) {
+        return this.counters.get(counter);
+    }
+
+    /**
+     * Returns the snapshot as plain text, one line per counter and per histogram.
+     *
+     * @return The text.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Metrics.Counter, Long> counter : this.counters.entrySet()) {
+            sb.append("count.").append(counter.getKey().name().toLowerCase(Locale.ROOT)).append(' ')
+              .append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<Metrics.Stage, Histogram.Snapshot> latency : this.latencies.entrySet()) {
+            MetricsSnapshot.dump(sb, "latency_ns.", latency.getKey(), latency.getValue());
+        }
+        for (Map.Entry<Metrics.Stage, Histogram.Snapshot> allocation : this.allocations.entrySet()) {
+            MetricsSnapshot.dump(sb, "alloc_bytes.", allocation.getKey(), allocation.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends one line with the count, mean, percentiles and maximum of a histogram.
+     *
+     * @param sb        The builder to append to.
+     * @param prefix    The prefix of the name of the histogram.
+     * @param stage     The stage of the histogram.
+     * @param histogram The histogram.
+     */
+    private static void dump(StringBuilder sb, String prefix, Metrics.Stage stage, Histogram.Snapshot histogram) {
+        sb.append(prefix).append(stage.name().toLowerCase(Locale.ROOT))
+          .append(" count=").append(histogram.getCount())
+          .append(" mean=").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()))
+          .append(" p50=").append(histogram.getValueAtQuantile(0.5))
+          .append(" p90=").append(histogram.getValueAtQuantile(0.9))
+          .append(" p99=").append(histogram.getValueAtQuantile(0.99))
+          .append(" max=").append(histogram.getMax()).append('\n');
+    }
+
+    /**
+     * Returns the snapshot as plain text.
+     *
+     * @return The text.
+     */
+    @Override
+    public String toString() {
+        return this.dump();
+    }
+}
@@ -0,0 +1,214 @@
+package a1_2001040024;
+
+import java.util.Arrays;
+
+/**
+ * A quoted phrase of a query, which a document has to contain for the query to match it. An exact phrase matches where
+ * its keywords occur at the same offsets from each other as in the phrase, counting the stop words and invalid words
+ * between them. A proximity phrase matches where all of its distinct keywords occur, in any order, with at most a
+ * given number of other words between the first and the last of them. A phrase never spans the title and the body.
+ * <p>
+ * A phrase is tested against the positions of its keywords in one document, which are read from the positional index
+ * rather than from the words of the document.
+ */
+final class Phrase {
+    private static final ThreadLocal<int[][]> POSITIONS = ThreadLocal.withInitial(() -> new int[0][]);
+    private static final ThreadLocal<int[]> COUNTS = ThreadLocal.withInitial(() -> new int[0]);
+    private static final ThreadLocal<int[]> CURSORS = ThreadLocal.withInitial(() -> new int[0]);
+
+    private final int[] keywords;
+    private final int[] offsets;
+    private final int distance;
+
+    /**
+     * Constructs a phrase.
+     *
+     * @param keywords The index in the query of every keyword of the phrase, in phrase order.
+     * @param offsets  The offset of every keyword from the first one, in words.
+     * @param distance The maximum number of other words between the keywords of a proximity phrase, or -1 for an exact
+     *                 phrase.
+     */
+    Phrase(int[] keywords, int[] offsets, int distance) {
+        this.keywords = keywords;
+        this.offsets = offsets;
+        this.distance = distance;
+    }
+
+    /**
+     * Returns the index in the query of every keyword of the phrase.
+     *
+     * @return The indexes, which must not be modified.
+     */
+    int[] keywords() {
+        return this.keywords;
+    }
+
+    /**
+     * Returns the offset of every keyword of the phrase from the first one.
+     *
+     * @return The offsets in words, which must not be modified.
+     */
+    int[] offsets() {
+        return this.offsets;
+    }
+
+    /**
+     * Returns the maximum number of other words between the keywords of a proximity phrase.
+     *
+     * @return The distance, or -1 for an exact phrase.
+     */
+    int distance() {
+        return this.distance;
+    }
+
+    /**
+     * Determines if a document contains the phrase, reading the positions of its keywords from their postings lists.
+     *
+     * @param postings    The reader of the postings list of every keyword of the query.
+     * @param entries     The index of the entry of the document in every postings list, or -1 if the document does not
+     *                    contain the keyword.
+     * @param titleLength The number of words in the title of the document.
+     * @return True if the document contains the phrase, false otherwise.
+     */
+    boolean matches(InvertedIndex.Postings.Reader[] postings, int[] entries, int titleLength) {
+        for (int keyword : this.keywords) {
+            if (entries[keyword] < 0) {
+                return false;
+            }
+        }
+        int[][] positions = POSITIONS.get();
+        int[] counts = COUNTS.get();
+        if (positions.length < this.keywords.length) {
+            positions = new int[this.keywords.length][];
+            counts = new int[this.keywords.length];
+            POSITIONS.set(positions);
+            COUNTS.set(counts);
+        }
+        for (int e = 0; e < this.keywords.length; e++) {
+            InvertedIndex.Postings.Reader reader = postings[this.keywords[e]];
+            int entry = entries[this.keywords[e]];
+            int freq = reader.freq(entry);
+            if (positions[e] == null || positions[e].length < freq) {
+                positions[e] = new int[Math.max(freq, 16)];
+            }
+            counts[e] = reader.positions(entry, positions[e]);
+        }
+        return this.matches(positions, counts, titleLength);
+    }
+
+    /**
+     * Determines if a document contains the phrase, given the positions of its keywords.
+     *
+     * @param positions   The positions of every keyword of the phrase in the document, in ascending order.
+     * @param counts      The number of positions of every keyword of the phrase.
+     * @param titleLength The number of words in the title of the document.
+     * @return True if the document contains the phrase, false otherwise.
+     */
+    boolean matches(int[][] positions, int[] counts, int titleLength) {
+        for (int e = 0; e < this.keywords.length; e++) {
+            if (counts[e] == 0) {
+                return false;
+            }
+        }
+        return this.distance < 0
+               ? this.matchesExact(positions, counts, titleLength)
+               : this.matchesWithin(positions, counts, titleLength);
+    }
+
+    /**
+     * Determines if the keywords occur at the offsets of the phrase. The keyword with the fewest positions proposes
+     * where the phrase starts, and every other keyword is looked up at its offset from there, moving forward only.
+     *
+     * @param positions   The positions of every keyword of the phrase.
+     * @param counts      The number of positions of every keyword of the phrase.
+     * @param titleLength The number of words in the title.
+     * @return True if the phrase occurs, false otherwise.
+     */
+    private boolean matchesExact(int[][] positions, int[] counts, int titleLength) {
+        int n = this.keywords.length;
+        int rarest = 0;
+        for (int e = 1; e < n; e++) {
+            if (counts[e] < counts[rarest]) {
+                rarest = e;
+            }
+        }
+        int span = this.offsets[n - 1];
+        int[] at = Phrase.cursors(n);
+        for (int p = 0; p < counts[rarest]; p++) {
+            long start = (long) positions[rarest][p] - this.offsets[rarest];
+            if (start < 0 || start < titleLength != start + span < titleLength) {
+                continue;
+            }
+            boolean found = true;
+            for (int e = 0; e < n && found; e++) {
+                long target = start + this.offsets[e];
+                while (at[e] < counts[e] && positions[e][at[e]] < target) {
+                    at[e]++;
+                }
+                if (at[e] == counts[e]) {
+                    // The later starts are further on, so no keyword is left to match them
+                    return false;
+                }
+                found = positions[e][at[e]] == target;
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the keywords occur within the distance of the phrase. A cursor walks the positions of every
+     * keyword, and the cursor at the smallest position moves forward, so every window between the smallest position
+     * and the closest positions of the other keywords after it is tried, in a single pass.
+     *
+     * @param positions   The positions of every keyword of the phrase.
+     * @param counts      The number of positions of every keyword of the phrase.
+     * @param titleLength The number of words in the title.
+     * @return True if the keywords occur within the distance, false otherwise.
+     */
+    private boolean matchesWithin(int[][] positions, int[] counts, int titleLength) {
+        int n = this.keywords.length;
+        // The keywords are distinct, so they take n different positions and leave the distance to other words
+        long span = (long) this.distance + n - 1;
+        int[] at = Phrase.cursors(n);
+        while (true) {
+            int first = 0;
+            int last = 0;
+            for (int e = 1; e < n; e++) {
+                if (positions[e][at[e]] < positions[first][at[first]]) {
+                    first = e;
+                }
+                if (positions[e][at[e]] > positions[last][at[last]]) {
+                    last = e;
+                }
+            }
+            int min = positions[first][at[first]];
+            int max = positions[last][at[last]];
+            if (max - min <= span && min < titleLength == max < titleLength) {
+                return true;
+            }
+            if (++at[first] == counts[first]) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the per-thread cursors of the keywords of a phrase, set to the first position of every keyword.
+     *
+     * @param size The number of keywords of the phrase.
+     * @return The cursors, of which the first size are cleared.
+     */
+    private static int[] cursors(int size) {
+        int[] cursors = CURSORS.get();
+        if (cursors.length < size) {
+            cursors = new int[size];
+            CURSORS.set(cursors);
+        } else {
+            Arrays.fill(cursors, 0, size, 0);
+        }
+        return cursors;
+    }
+}
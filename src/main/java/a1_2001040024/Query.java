@@ -1,29 +1,212 @@
 package a1_2001040024;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
- * This class represents a user's search query. A Query object stores a list of keywords internally.
+ * This class represents a user's search query. A Query object stores a list of keywords internally, together with the
+ * term ids of the keywords which are used for matching.
+ * <p>
+ * Words in double quotes form a phrase, such as {@code "new york"}, which a document has to contain for the query to
+ * match it, with its keywords next to each other in the same order. A phrase closed by {@code "~N}, such as {@code
+ * "war peace"~5}, only needs its keywords to occur within N words of each other, in any order. Stop words inside a
+ * phrase are not keywords, but still count as words between them. A quote which is never closed runs to the end of the
+ * search phrase, and a phrase with fewer than two keywords is ignored. Phrases only filter the documents; the keywords
+ * in them are matched and ranked like any other.
  */
 public class Query {
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
     private final List<Word> keywords;
+    private final int[] termIds;
+    // Open-addressing table from the term id of every distinct keyword to its slot
+    private final int[] tableTerms;
+    private final int[] tableSlots;
+    // Slot of every keyword, keywords which are equal share a slot
+    private final int[] keywordSlots;
+    private final int slotCount;
+    private final List<Phrase> phrases;
+    // Whether the positions of the keywords in every slot are needed by a phrase, or null if there are no phrases
+    private final boolean[] phraseSlots;
+    private final int[] cacheKey;
 
     /**
      * Constructs a Query object with the given search phrase. The search phrase is split into words, and only those
-     * that are not stop words are added to the keywords list.
+     * that are not stop words are added to the keywords list. Quoted words are also grouped into phrases.
      *
      * @param searchPhrase The raw search phrase from the user.
      */
     public Query(String searchPhrase) {
-        this.keywords = Arrays.stream(searchPhrase.split(" "))
-                              .map(Word::createWord)
-                              .filter(Word::isKeyword)
-                              .collect(Collectors.toList());
+        this.keywords = new ArrayList<>();
+        this.phrases = new ArrayList<>();
+        int[] bounds = new int[2];
+        // The keywords of the open phrase with their word index, or null outside of a phrase
+        List<int[]> phrase = null;
+        int word = 0;
+        for (int start = 0; start <= searchPhrase.length(); word++) {
+            int end = searchPhrase.indexOf(' ', start);
+            if (end < 0) {
+                end = searchPhrase.length();
+            }
+            boolean opens = phrase == null && start < end && searchPhrase.charAt(start) == '"';
+            if (opens) {
+                phrase = new ArrayList<>();
+            }
+            // The closing quote stays in the suffix of the word, the distance after it is cut off
+            int wordEnd = end;
+            int distance = -2;
+            if (phrase != null) {
+                int quote = searchPhrase.lastIndexOf('"', end - 1);
+                if (quote >= (opens ? start + 1 : start)) {
+                    distance = Query.parseDistance(searchPhrase, quote + 1, end);
+                    if (distance > -2) {
+                        wordEnd = quote + 1;
+                    }
+                }
+            }
+            Word keyword = Word.createKeyword(searchPhrase, start, wordEnd, bounds);
+            if (keyword != null) {
+                if (phrase != null) {
+                    phrase.add(new int[]{this.keywords.size(), word});
+                }
+                this.keywords.add(keyword);
+            }
+            if (distance > -2) {
+                this.addPhrase(phrase, distance);
+                phrase = null;
+            }
+            start = end + 1;
+        }
+        if (phrase != null) {
+            this.addPhrase(phrase, -1);
+        }
+        this.termIds = this.keywords.stream().mapToInt(Word::getTermId).toArray();
+        int capacity = Integer.highestOneBit(Math.max(1, this.termIds.length) * 2 - 1) * 2;
+        this.tableTerms = new int[capacity];
+        this.tableSlots = new int[capacity];
+        this.keywordSlots = new int[this.termIds.length];
+        Arrays.fill(this.tableTerms, -1);
+        int slots = 0;
+        for (int k = 0; k < this.termIds.length; k++) {
+            int i = this.probe(this.termIds[k]);
+            if (this.tableTerms[i] < 0) {
+                this.tableTerms[i] = this.termIds[k];
+                this.tableSlots[i] = slots++;
+            }
+            this.keywordSlots[k] = this.tableSlots[i];
+        }
+        this.slotCount = slots;
+        this.phraseSlots = this.phrases.isEmpty() ? null : new boolean[slots];
+        for (Phrase p : this.phrases) {
+            for (int k : p.keywords()) {
+                this.phraseSlots[this.keywordSlots[k]] = true;
+            }
+        }
+        this.cacheKey = this.cacheKey();
+    }
+
+    /**
+     * Parses what follows the closing quote of a phrase: nothing for an exact phrase, or {@code ~N} for a proximity
+     * phrase. Distances too large for an int are cut to the largest int.
+     *
+     * @param seq   The search phrase.
+     * @param start The index after the quote, inclusive.
+     * @param end   The end of the word, exclusive.
+     * @return The distance, -1 for an exact phrase, or -2 if the quote does not close the phrase.
+     */
+    private static int parseDistance(String seq, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        if (seq.charAt(start) != '~' || start + 1 == end) {
+            return -2;
+        }
+        long distance = 0;
+        for (int i = start + 1; i < end; i++) {
+            char c = seq.charAt(i);
+            if (c < '0' || c > '9') {
+                return -2;
+            }
+            distance = Math.min(distance * 10 + (c - '0'), Integer.MAX_VALUE);
+        }
+        return (int) distance;
+    }
+
+    /**
+     * Adds a phrase of the query, unless it has fewer than two keywords, which is the same as not quoting them. The
+     * offsets of the keywords are counted from the first one, and a proximity phrase keeps the first of equal keywords
+     * only.
+     *
+     * @param phrase   The index and word index of every keyword of the phrase.
+     * @param distance The distance of a proximity phrase, or -1 for an exact phrase.
+     */
+    private void addPhrase(List<int[]> phrase, int distance) {
+        List<int[]> kept = new ArrayList<>();
+        for (int[] keyword : phrase) {
+            boolean duplicate = false;
+            for (int j = 0; j < kept.size() && distance >= 0 && !duplicate; j++) {
+                duplicate = this.keywords.get(kept.get(j)[0]).getTermId() == this.keywords.get(keyword[0]).getTermId();
+            }
+            if (!duplicate) {
+                kept.add(keyword);
+            }
+        }
+        if (kept.size() < 2) {
+            return;
+        }
+        int[] keywords = new int[kept.size()];
+        int[] offsets = new int[kept.size()];
+        for (int i = 0; i < kept.size(); i++) {
+            keywords[i] = kept.get(i)[0];
+            offsets[i] = kept.get(i)[1] - kept.get(0)[1];
+        }
+        this.phrases.add(new Phrase(keywords, offsets, distance));
+    }
+
+    /**
+     * Builds the key of the query in the query cache: the term ids, followed by the phrases if there are any. Every
+     * phrase starts with a negative marker, which no term id is, then has its distance, its number of keywords, and the
+     * index and offset of every keyword.
+     *
+     * @return The key.
+     */
+    private int[] cacheKey() {
+        if (this.phrases.isEmpty()) {
+            return this.termIds;
+        }
+        int length = this.termIds.length;
+        for (Phrase p : this.phrases) {
+            length += 3 + 2 * p.keywords().length;
+        }
+        int[] key = Arrays.copyOf(this.termIds, length);
+        int i = this.termIds.length;
+        for (Phrase p : this.phrases) {
+            key[i++] = Integer.MIN_VALUE;
+            key[i++] = p.distance();
+            key[i++] = p.keywords().length;
+            for (int e = 0; e < p.keywords().length; e++) {
+                key[i++] = p.keywords()[e];
+                key[i++] = p.offsets()[e];
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns the index of the given term in the lookup table, or the index of the empty entry where it belongs.
+     *
+     * @param termId The term id to look up.
+     * @return The index in the lookup table.
+     */
+    private int probe(int termId) {
+        int mask = this.tableTerms.length - 1;
+        int i = termId * 0x9E3779B9 >>> 16 & mask;
+        while (this.tableTerms[i] >= 0 && this.tableTerms[i] != termId) {
+            i = i + 1 & mask;
+        }
+        return i;
     }
 
     /**
@@ -35,18 +218,133 @@ public class Query {
         return this.keywords;
     }
 
+    /**
+     * Returns the term ids of the query's keywords, in the same order as the keywords.
+     *
+     * @return The term ids of the keywords, which must not be modified.
+     */
+    int[] getTermIds() {
+        return this.termIds;
+    }
+
+    /**
+     * Returns the quoted phrases of the query, which a document has to contain.
+     *
+     * @return The phrases, in query order.
+     */
+    List<Phrase> getPhrases() {
+        return this.phrases;
+    }
+
+    /**
+     * Returns the key of the query in the query cache, which identifies its keywords and phrases.
+     *
+     * @return The key, which must not be modified.
+     */
+    int[] getCacheKey() {
+        return this.cacheKey;
+    }
+
     /**
      * Returns a list of matches against the given document. The matches are sorted by the position where the keyword
-     * first appears in the document.
+     * first appears in the document. The list is empty if the document does not contain every phrase of the query.
      *
      * @param d The document to match against.
      * @return A list of Match objects representing the matches of the query against the document.
      */
     public List<Match> matchAgainst(Doc d) {
-        List<Word> docWords = Stream.concat(d.getTitle().stream(), d.getBody().stream()).collect(Collectors.toList());
-        return keywords.stream().map(keyword -> {
-            int freq = Collections.frequency(docWords, keyword);
-            return freq > 0 ? new Match(d, keyword, freq, docWords.indexOf(keyword)) : null;
-        }).filter(Objects::nonNull).sorted().collect(Collectors.toList());
+        // Walk the document once, counting every keyword at the same time in per-thread buffers
+        Scratch scratch = SCRATCH.get().reset(this.slotCount);
+        int[] docTerms = d.getTerms();
+        for (int i = 0; i < docTerms.length; i++) {
+            int entry = this.probe(docTerms[i]);
+            if (this.tableTerms[entry] >= 0) {
+                int slot = this.tableSlots[entry];
+                if (this.phraseSlots != null && this.phraseSlots[slot]) {
+                    scratch.addPosition(slot, i);
+                }
+                if (scratch.freqs[slot]++ == 0) {
+                    scratch.firstIndexes[slot] = i;
+                }
+            }
+        }
+        List<Match> matches = new ArrayList<>();
+        for (Phrase phrase : this.phrases) {
+            int[] phraseKeywords = phrase.keywords();
+            scratch.resetPhrase(phraseKeywords.length);
+            for (int e = 0; e < phraseKeywords.length; e++) {
+                int slot = this.keywordSlots[phraseKeywords[e]];
+                scratch.phrasePositions[e] = scratch.positions[slot];
+                scratch.phraseCounts[e] = scratch.freqs[slot];
+            }
+            if (!phrase.matches(scratch.phrasePositions, scratch.phraseCounts, d.getTitleLength())) {
+                return matches;
+            }
+        }
+        for (int k = 0; k < this.keywordSlots.length; k++) {
+            int slot = this.keywordSlots[k];
+            if (scratch.freqs[slot] > 0) {
+                matches.add(new Match(d, this.keywords.get(k), scratch.freqs[slot], scratch.firstIndexes[slot]));
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    /**
+     * Per-thread buffers for the frequency, first index and positions of every keyword, and for the positions and
+     * counts of the keywords of one phrase, reused across calls.
+     */
+    private static class Scratch {
+        private int[] freqs = new int[16];
+        private int[] firstIndexes = new int[16];
+        private int[][] positions = new int[16][];
+        private int[][] phrasePositions = new int[4][];
+        private int[] phraseCounts = new int[4];
+
+        /**
+         * Clears the buffers for the given number of keywords, growing them if needed.
+         *
+         * @param size The number of distinct keywords.
+         * @return This object.
+         */
+        Scratch reset(int size) {
+            if (this.freqs.length < size) {
+                this.freqs = new int[size];
+                this.firstIndexes = new int[size];
+                this.positions = new int[size][];
+            } else {
+                Arrays.fill(this.freqs, 0, size, 0);
+            }
+            return this;
+        }
+
+        /**
+         * Records the next position of a keyword, before its frequency is counted.
+         *
+         * @param slot     The slot of the keyword.
+         * @param position The position.
+         */
+        void addPosition(int slot, int position) {
+            int count = this.freqs[slot];
+            if (this.positions[slot] == null) {
+                this.positions[slot] = new int[16];
+            } else if (count == this.positions[slot].length) {
+                this.positions[slot] = Arrays.copyOf(this.positions[slot], 2 * count);
+            }
+            this.positions[slot][count] = position;
+        }
+
+        /**
+         * Makes room for the positions and counts of the keywords of a phrase, which the caller then fills in.
+         *
+         * @param size The number of keywords of the phrase.
+         */
+        void resetPhrase(int size) {
+            if (this.phraseCounts.length < size) {
+                this.phrasePositions = new int[size][];
+                this.phraseCounts = new int[size];
+            }
+        }
     }
 }
@@ -0,0 +1,330 @@
+package a1_2001040024;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of search results, keyed by the term ids of the query's keywords and by its quoted phrases rather than the
+ * raw search phrase, so phrases which differ only in stop words, case or punctuation around the keywords share an
+ * entry. The matches of cached results hold the keywords of the query which filled the entry. A query whose keywords
+ * are written differently gets copies of the results whose matches hold its own keywords instead, which is cheaper than
+ * searching again, but not free, so repeating the same query is the fastest hit.
+ * <p>
+ * The cache is bounded both by its number of entries and by an estimate of the memory held by the cached lists, and
+ * evicts the least recently used entries first. An entry is only valid for the documents and stop words it was computed
+ * with: the engine empties its cache whenever its documents change, and an entry computed with other stop words is
+ * dropped when it is looked up.
+ */
+public class QueryCache {
+    /**
+     * Estimated bytes of a cached list and its entry, of a Result with its list of matches, and of a Match.
+     */
+    private static final int LIST_BYTES = 96;
+    private static final int RESULT_BYTES = 88;
+    private static final int MATCH_BYTES = 40;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private long bytes;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxEntries The maximum number of cached searches.
+     * @param maxBytes   The maximum estimated memory held by the cached results, in bytes.
+     */
+    public QueryCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive: " + maxEntries + ", "
+                                               + maxBytes);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Returns the cached results of a search, or null if there are none. The matches of the results hold the keywords
+     * of the given query.
+     *
+     * @param version The version of the documents to search.
+     * @param q       The query.
+     * @param offset  The number of results skipped.
+     * @param limit   The maximum number of results, or -1 for all of them.
+     * @return The cached results, which must not be modified, or null if there are none.
+     */
+    List<Result> get(long version, Query q, int offset, int limit) {
+        Key key = new Key(q.getCacheKey(), offset, limit);
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry != null && (entry.version != version || entry.stopWords != Word.stopWordsGeneration())) {
+                this.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return QueryCache.sameWords(entry.keywords, q.getKeywords())
+               ? entry.results
+               : QueryCache.withKeywords(entry.results, entry.keywords, q.getKeywords());
+    }
+
+    /**
+     * Caches the results of a search, evicting the least recently used entries to stay within the bounds. Results
+     * which are too large for the cache on their own are not cached.
+     *
+     * @param version The version of the documents searched.
+     * @param q       The query, whose keywords the matches of the results hold.
+     * @param offset  The number of results skipped.
+     * @param limit   The maximum number of results, or -1 for all of them.
+     * @param results The results, which must not be modified afterwards.
+     */
+    void put(long version, Query q, int offset, int limit, List<Result> results) {
+        long size = QueryCache.estimate(results);
+        if (size > this.maxBytes) {
+            return;
+        }
+        Key key = new Key(q.getCacheKey(), offset, limit);
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.version > version) {
+                // A search against newer documents got here first
+                return;
+            }
+            this.remove(key);
+            this.entries.put(key, new Entry(version, Word.stopWordsGeneration(), q.getKeywords(), results, size));
+            this.bytes += size;
+            Iterator<Entry> eldest = this.entries.values().iterator();
+            while (this.entries.size() > this.maxEntries || this.bytes > this.maxBytes) {
+                this.bytes -= eldest.next().bytes;
+                eldest.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes an entry. The caller holds the lock of the cache.
+     *
+     * @param key The key of the entry.
+     */
+    private void remove(Key key) {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * Determines if two lists of keywords are written the same way, including the prefixes and suffixes.
+     *
+     * @param cached   The keywords of the cached results.
+     * @param keywords The keywords of the query.
+     * @return True if every keyword has the same prefix, text and suffix as the other one, false otherwise.
+     */
+    private static boolean sameWords(List<Word> cached, List<Word> keywords) {
+        if (cached == keywords) {
+            return true;
+        }
+        for (int k = 0; k < cached.size(); k++) {
+            Word a = cached.get(k);
+            Word b = keywords.get(k);
+            if (a != b && !(a.getPrefix().equals(b.getPrefix()) && a.getText().equals(b.getText())
+                            && a.getSuffix().equals(b.getSuffix()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies cached results with the keywords of another query in their matches. The queries have the same cache key,
+     * so the keyword at every index of one has the same term as the keyword at that index of the other.
+     *
+     * @param results  The cached results.
+     * @param cached   The keywords which the matches of the cached results hold.
+     * @param keywords The keywords of the query.
+     * @return The copies of the results.
+     */
+    private static List<Result> withKeywords(List<Result> results, List<Word> cached, List<Word> keywords) {
+        List<Result> copies = new ArrayList<>(results.size());
+        for (Result result : results) {
+            List<Match> matches = new ArrayList<>(result.getMatchCount());
+            for (Match match : result.getMatches()) {
+                int k = 0;
+                while (cached.get(k) != match.getWord()) {
+                    k++;
+                }
+                matches.add(new Match(match.getDoc(), keywords.get(k), match.getFreq(), match.getFirstIndex()));
+            }
+            copies.add(new Result(result.getDoc(), matches));
+        }
+        return copies;
+    }
+
+    /**
+     * Estimates the memory held by a list of results. The documents are not counted, since the engine holds them
+     * anyway.
+     *
+     * @param results The results.
+     * @return The estimated size, in bytes.
+     */
+    private static long estimate(List<Result> results) {
+        long size = LIST_BYTES + 4L * results.size();
+        for (Result result : results) {
+            size += RESULT_BYTES + (long) MATCH_BYTES * result.getMatchCount();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of lookups which found valid results.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which found no valid results.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the bounds.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Returns the number of cached searches.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the estimated memory held by the cached results.
+     *
+     * @return The estimated size, in bytes.
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * The key of a cached search: the term ids of the keywords in query order, which also decide the order of tied
+     * matches, with the phrases of the query, and the page of results.
+     */
+    private static final class Key {
+        private final int[] queryKey;
+        private final int offset;
+        private final int limit;
+        private final int hash;
+
+        /**
+         * Constructs a key.
+         *
+         * @param queryKey The cache key of the query.
+         * @param offset   The number of results skipped.
+         * @param limit    The maximum number of results, or -1 for all of them.
+         */
+        Key(int[] queryKey, int offset, int limit) {
+            this.queryKey = queryKey;
+            this.offset = offset;
+            this.limit = limit;
+            this.hash = (Arrays.hashCode(queryKey) * 31 + offset) * 31 + limit;
+        }
+
+        /**
+         * Returns the hash code of the key.
+         *
+         * @return The hash code.
+         */
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        /**
+         * Compares the key with another object.
+         *
+         * @param o The other object.
+         * @return True if the other object is a key of the same search.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.hash == other.hash && this.offset == other.offset && this.limit == other.limit
+                   && Arrays.equals(this.queryKey, other.queryKey);
+        }
+    }
+
+    /**
+     * A cached list of results, with the versions of the documents and stop words it was computed with and the
+     * keywords which its matches hold.
+     */
+    private static final class Entry {
+        private final long version;
+        private final int stopWords;
+        private final List<Word> keywords;
+        private final List<Result> results;
+        private final long bytes;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param version   The version of the documents.
+         * @param stopWords The generation of the stop words.
+         * @param keywords  The keywords which the matches of the results hold.
+         * @param results   The results.
+         * @param bytes     The estimated size of the results.
+         */
+        Entry(long version, int stopWords, List<Word> keywords, List<Result> results, long bytes) {
+            this.version = version;
+            this.stopWords = stopWords;
+            this.keywords = keywords;
+            this.results = results;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package a1_2001040024;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * The Result class represents a document found in the search engine. Each Result object stores information about a
@@ -82,31 +82,40 @@ public class Result implements Comparable<Result> {
      * @return The HTML-formatted document with matched words highlighted.
      */
     public String htmlHighlight() {
-        Set<Word> matchedWords = this.matches.stream().map(Match::getWord).collect(Collectors.toSet());
-        return "<h3>" +
-               this.highlightWords(this.doc.getTitle(), matchedWords, "<u>") +
-               "</h3>" +
-               "<p>" +
-               this.highlightWords(this.doc.getBody(), matchedWords, "<b>") +
-               "</p>";
+        StringBuilder sb = new StringBuilder();
+        try {
+            this.writeHtml(sb);
+        } catch (IOException e) {
+            // A StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the document with the matched words highlighted using HTML markups to the given sink. The output is the
+     * same as {@link #htmlHighlight()}, but tags and words are written straight to the sink.
+     *
+     * @param out The sink to write to.
+     * @throws IOException If the sink fails.
+     */
+    public void writeHtml(Appendable out) throws IOException {
+        int[] matchedTerms = this.getMatchedTerms();
+        out.append("<h3>");
+        this.doc.writeWords(out, true, matchedTerms, "<u>", "</u>");
+        out.append("</h3>").append("<p>");
+        this.doc.writeWords(out, false, matchedTerms, "<b>", "</b>");
+        out.append("</p>");
     }
 
     /**
-     * Highlights words in a list based on a set of matched words and a tag.
+     * Returns the distinct term ids of the matched keywords in increasing order, which are the terms the HTML of the
+     * result highlights.
      *
-     * @param words        the list of words to highlight
-     * @param matchedWords the set of words to match against
-     * @param tag          the HTML tag to wrap the matched words with
-     * @return a string with highlighted words
+     * @return The sorted term ids of the matched keywords.
      */
-    private String highlightWords(List<Word> words, Set<Word> matchedWords, String tag) {
-        return words.stream().map(word -> {
-            if (matchedWords.contains(word)) {
-                return word.getPrefix() + tag + word.getText() + tag.replace("<", "</") + word.getSuffix();
-            } else {
-                return word.toString();
-            }
-        }).collect(Collectors.joining(" "));
+    int[] getMatchedTerms() {
+        return this.matches.stream().mapToInt(match -> match.getWord().getTermId()).sorted().distinct().toArray();
     }
 
     /**
@@ -0,0 +1,276 @@
+package a1_2001040024;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A binary file which stores the parsed state of the documents of one directory: the term table, the file name, lines
+ * and word arrays of every document and the postings lists with their positions. The postings lists are stored as
+ * their compressed blocks and skip pointers, for the block size of the index they were built in. Reopening a segment
+ * maps the file into memory and copies the arrays out in bulk, without decoding or compressing the postings lists
+ * again, which is much faster than reading and tokenizing the documents again.
+ * <p>
+ * Every segment records a fingerprint of the files it was built from and of the stop words. A segment whose
+ * fingerprint does not match the current files is stale and is not read.
+ */
+final class SegmentFile {
+    private static final int MAGIC = 0x53453153;
+    private static final int VERSION = 4;
+
+    /**
+     * This class only has static members.
+     */
+    private SegmentFile() {
+    }
+
+    /**
+     * Computes the fingerprint of the given source files and stop words. It changes when the files are in another
+     * directory, when a file is added, removed, renamed or modified, or when the stop words change. The stop words are
+     * recorded as a SHA-256 digest of their sorted list.
+     *
+     * @param dir       The directory of the source files.
+     * @param paths     The source files, in load order.
+     * @param stopWords The stop words, or null if none are loaded.
+     * @return The fingerprint.
+     * @throws IOException If the attributes of a file cannot be read.
+     */
+    static byte[] fingerprint(Path dir, List<Path> paths, Set<String> stopWords) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SegmentFile.writeString(out, dir.toAbsolutePath().normalize().toString());
+        out.writeBoolean(stopWords != null);
+        if (stopWords != null) {
+            out.write(SegmentFile.digest(stopWords));
+        }
+        out.writeInt(paths.size());
+        for (Path path : paths) {
+            SegmentFile.writeString(out, path.getFileName().toString());
+            out.writeLong(Files.size(path));
+            out.writeLong(Files.getLastModifiedTime(path).toMillis());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Computes the SHA-256 digest of the sorted list of the given words, each written as its length and UTF-8 bytes.
+     *
+     * @param words The words.
+     * @return The digest.
+     */
+    private static byte[] digest(Set<String> words) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+        String[] sorted = words.toArray(new String[0]);
+        Arrays.sort(sorted);
+        for (String word : sorted) {
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Writes the given documents and their index to a segment file. The file is written next to its final location
+     * and then moved into place, so a reader never sees a partly written segment.
+     *
+     * @param file        The segment file.
+     * @param fingerprint The fingerprint of the source files.
+     * @param contents    The documents and their index.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(Path file, byte[] fingerprint, Contents contents) throws IOException {
+        // Number the terms used by the documents densely, in order of first use. Every one of them is in the index.
+        int[] localIds = new int[contents.index.termLimit()];
+        Arrays.fill(localIds, -1);
+        List<Integer> terms = new ArrayList<>();
+        for (Doc doc : contents.docs) {
+            for (int term : doc.getTerms()) {
+                if (localIds[term] < 0) {
+                    localIds[term] = terms.size();
+                    terms.add(term);
+                }
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(contents.index.blockSize());
+            out.writeInt(fingerprint.length);
+            out.write(fingerprint);
+            out.writeInt(terms.size());
+            for (int term : terms) {
+                SegmentFile.writeString(out, TermDictionary.text(term));
+            }
+            out.writeInt(contents.docs.size());
+            // The file names are resolved against the directory of the fingerprint when the segment is read
+            for (int i = 0; i < contents.docs.size(); i++) {
+                SegmentFile.writeString(out, contents.paths.get(i).getFileName().toString());
+                contents.docs.get(i).write(out, localIds);
+            }
+            out.writeInt(terms.size());
+            for (int term : terms) {
+                out.writeInt(localIds[term]);
+                contents.index.get(term).write(out);
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the documents and their index from a segment file, if the segment was built from the same source files
+     * with the same block size.
+     *
+     * @param file        The segment file.
+     * @param dir         The directory of the source files.
+     * @param fingerprint The fingerprint of the current source files.
+     * @param blockSize   The number of entries in a compressed block of the postings lists to read.
+     * @return The documents and their index, or null if the file is missing, stale or corrupt.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    static Contents read(Path file, Path dir, byte[] fingerprint, int blockSize) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != blockSize) {
+                return null;
+            }
+            byte[] stored = new byte[in.getInt()];
+            in.get(stored);
+            if (!Arrays.equals(stored, fingerprint)) {
+                return null;
+            }
+            int[] globalIds = new int[in.getInt()];
+            for (int i = 0; i < globalIds.length; i++) {
+                globalIds[i] = TermDictionary.id(SegmentFile.readString(in));
+            }
+            List<Doc> docs = new ArrayList<>();
+            List<Path> paths = new ArrayList<>();
+            int docCount = in.getInt();
+            for (int i = 0; i < docCount; i++) {
+                paths.add(dir.resolve(SegmentFile.readString(in)));
+                docs.add(Doc.read(in, globalIds));
+            }
+            InvertedIndex index = new InvertedIndex(blockSize);
+            int postingsCount = in.getInt();
+            for (int i = 0; i < postingsCount; i++) {
+                int termId = globalIds[in.getInt()];
+                index.set(termId, InvertedIndex.Postings.read(in, blockSize));
+            }
+            return new Contents(docs, paths, index);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException |
+                 NegativeArraySizeException e) {
+            // The file is truncated or corrupt
+            return null;
+        }
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 bytes.
+     *
+     * @param out The output.
+     * @param s   The string.
+     * @throws IOException If the output fails.
+     */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in The input.
+     * @return The string.
+     */
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes every element of an int array.
+     *
+     * @param out    The output.
+     * @param values The array.
+     * @throws IOException If the output fails.
+     */
+    static void writeInts(DataOutput out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads the given number of ints in bulk.
+     *
+     * @param in     The input.
+     * @param length The number of ints.
+     * @return The array of ints.
+     */
+    static int[] readInts(ByteBuffer in, int length) {
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+    /**
+     * The documents of a segment, their source files and the index of their words, with document ids starting from
+     * zero.
+     */
+    static final class Contents {
+        final List<Doc> docs;
+        final List<Path> paths;
+        final InvertedIndex index;
+
+        /**
+         * Constructs the contents of a segment.
+         *
+         * @param docs  The documents.
+         * @param paths The source file of every document.
+         * @param index The index of the documents.
+         */
+        Contents(List<Doc> docs, List<Path> paths, InvertedIndex index) {
+            this.docs = docs;
+            this.paths = paths;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package a1_2001040024;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A log of the searches which took at least a threshold, with a trace of each: its keywords, the time of every stage,
+ * the number of candidate documents, matches built and results. The log is a ring buffer which keeps the latest
+ * entries only. While the log is set, every search is traced: the engine reads the clock after every stage and counts
+ * into buffers which each thread reuses from one search to the next, so a search below the threshold costs those clock
+ * reads and a comparison, without allocating, and the log can stay on.
+ */
+public class SlowQueryLog {
+    private final long thresholdNanos;
+    private final Entry[] entries;
+    private long recorded;
+
+    /**
+     * Constructs an empty log.
+     *
+     * @param threshold The minimum duration of a search to log.
+     * @param unit      The unit of the threshold.
+     * @param capacity  The maximum number of entries to keep.
+     */
+    public SlowQueryLog(long threshold, TimeUnit unit, int capacity) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.entries = new Entry[capacity];
+    }
+
+    /**
+     * Logs a search if it took at least the threshold.
+     *
+     * @param q      The query of the search.
+     * @param offset The number of results skipped.
+     * @param limit  The maximum number of results, or -1 for all of them.
+     * @param timer  The traced timer of the search, after its last stage. The caller finishes it afterwards.
+     */
+    void record(Query q, int offset, int limit, Metrics.Timer timer) {
+        long elapsed = timer.elapsed();
+        if (elapsed < this.thresholdNanos) {
+            return;
+        }
+        Map<Metrics.Stage, Long> durations = new EnumMap<>(Metrics.Stage.class);
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            if (timer.duration(stage) > 0) {
+                durations.put(stage, timer.duration(stage));
+            }
+        }
+        List<String> keywords = q.getKeywords().stream().map(Word::getText).collect(Collectors.toList());
+        Entry entry = new Entry(System.currentTimeMillis(), keywords, offset, limit, elapsed, durations,
+                                timer.count(Metrics.Counter.DOCUMENTS), timer.count(Metrics.Counter.MATCHES),
+                                timer.count(Metrics.Counter.RESULTS));
+        synchronized (this) {
+            this.entries[(int) (this.recorded % this.entries.length)] = entry;
+            this.recorded++;
+        }
+    }
+
+    /**
+     * Returns the logged searches which are still kept, the oldest first.
+     *
+     * @return The entries.
+     */
+    public synchronized List<Entry> getEntries() {
+        int size = (int) Math.min(this.recorded, this.entries.length);
+        List<Entry> entries = new ArrayList<>(size);
+        for (long i = this.recorded - size; i < this.recorded; i++) {
+            entries.add(this.entries[(int) (i % this.entries.length)]);
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the number of searches logged so far, including the ones which are no longer kept.
+     *
+     * @return The number of logged searches.
+     */
+    public synchronized long getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < this.entries.length; i++) {
+            this.entries[i] = null;
+        }
+        this.recorded = 0;
+    }
+
+    /**
+     * Returns the kept entries as plain text, one line per search, the oldest first.
+     *
+     * @return The text.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : this.getEntries()) {
+            sb.append(entry).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The trace of one slow search.
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final List<String> keywords;
+        private final int offset;
+        private final int limit;
+        private final long durationNanos;
+        private final Map<Metrics.Stage, Long> stageNanos;
+        private final long candidates;
+        private final long matches;
+        private final long results;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param timestamp     The time the search ended, in milliseconds since the epoch.
+         * @param keywords      The keywords of the query.
+         * @param offset        The number of results skipped.
+         * @param limit         The maximum number of results, or -1 for all of them.
+         * @param durationNanos The duration of the search.
+         * @param stageNanos    The duration of every stage the search went through.
+         * @param candidates    The number of candidate documents visited.
+         * @param matches       The number of matches built.
+         * @param results       The number of results returned.
+         */
+        Entry(long timestamp, List<String> keywords, int offset, int limit, long durationNanos,
+              Map<Metrics.Stage, Long> stageNanos, long candidates, long matches, long results) {
+            this.timestamp = timestamp;
+            this.keywords = Collections.unmodifiableList(keywords);
+            this.offset = offset;
+            this.limit = limit;
+            this.durationNanos = durationNanos;
+            this.stageNanos = Collections.unmodifiableMap(stageNanos);
+            this.candidates = candidates;
+            this.matches = matches;
+            this.results = results;
+        }
+
+        /**
+         * Returns the time the search ended.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Returns the keywords of the query.
+         *
+         * @return The texts of the keywords, in query order.
+         */
+        public List<String> getKeywords() {
+            return this.keywords;
+        }
+
+        /**
+         * Returns the number of results the search skipped.
+         *
+         * @return The offset.
+         */
+        public int getOffset() {
+            return this.offset;
+        }
+
+        /**
+         * Returns the maximum number of results the search returned.
+         *
+         * @return The limit, or -1 if the search returned all of them.
+         */
+        public int getLimit() {
+            return this.limit;
+        }
+
+        /**
+         * Returns the duration of the search.
+         *
+         * @return The duration in nanoseconds.
+         */
+        public long getDurationNanos() {
+            return this.durationNanos;
+        }
+
+        /**
+         * Returns the duration of every stage the search went through. A search answered from the query cache only
+         * goes through the lookup.
+         *
+         * @return The durations in nanoseconds, in the order of {@link Metrics.Stage}.
+         */
+        public Map<Metrics.Stage, Long> getStageNanos() {
+            return this.stageNanos;
+        }
+
+        /**
+         * Returns the number of candidate documents visited in the postings lists.
+         *
+         * @return The number of candidates.
+         */
+        public long getCandidates() {
+            return this.candidates;
+        }
+
+        /**
+         * Returns the number of matches built.
+         *
+         * @return The number of matches.
+         */
+        public long getMatches() {
+            return this.matches;
+        }
+
+        /**
+         * Returns the number of results returned.
+         *
+         * @return The number of results.
+         */
+        public long getResults() {
+            return this.results;
+        }
+
+        /**
+         * Returns the entry as one line of plain text.
+         *
+         * @return The text.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.timestamp).append(' ')
+              .append(String.format(Locale.ROOT, "%.3fms", this.durationNanos / 1e6))
+              .append(" keywords=").append(this.keywords)
+              .append(" offset=").append(this.offset)
+              .append(" limit=").append(this.limit)
+              .append(" candidates=").append(this.candidates)
+              .append(" matches=").append(this.matches)
+              .append(" results=").append(this.results);
+            for (Map.Entry<Metrics.Stage, Long> stage : this.stageNanos.entrySet()) {
+                sb.append(' ').append(stage.getKey().name().toLowerCase(Locale.ROOT))
+                  .append(String.format(Locale.ROOT, "=%.3fms", stage.getValue() / 1e6));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package a1_2001040024;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An immutable table of stop words which tests a range of a character sequence without allocating. A range is a stop
+ * word if its lowercase form, as computed by {@link String#toLowerCase()}, is one of the words, the same as looking it
+ * up in the set of stop words. The table is built once from a set of stop words, by open addressing with linear
+ * probing. Ranges of ASCII characters are lowercased while they are hashed and compared, any other range is copied and
+ * lowercased by {@link String#toLowerCase()}, since its lowercase form may depend on the locale or have another length.
+ */
+final class StopWords {
+    private final Set<String> source;
+    private final int generation;
+    private final String[] words;
+    private final int[] hashes;
+
+    /**
+     * Constructs the table of a set of stop words.
+     *
+     * @param source     The set of stop words, or null if none are loaded.
+     * @param generation The generation of the stop words.
+     */
+    StopWords(Set<String> source, int generation) {
+        this.source = source;
+        this.generation = generation;
+        int size = source == null ? 0 : source.size();
+        int capacity = Integer.highestOneBit(Math.max(1, size) * 2 - 1) * 2;
+        this.words = new String[capacity];
+        this.hashes = new int[capacity];
+        if (source != null) {
+            for (String word : source) {
+                if (word != null) {
+                    int i = this.probe(word.hashCode());
+                    while (this.words[i] != null) {
+                        i = i + 1 & this.words.length - 1;
+                    }
+                    this.words[i] = word;
+                    this.hashes[i] = word.hashCode();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the set the table was built from.
+     *
+     * @return The set of stop words, or null if none are loaded.
+     */
+    Set<String> source() {
+        return this.source;
+    }
+
+    /**
+     * Returns the generation of the stop words the table was built from.
+     *
+     * @return The generation, which is always positive.
+     */
+    int generation() {
+        return this.generation;
+    }
+
+    /**
+     * Determines if the characters between the given indexes are a stop word, ignoring case.
+     *
+     * @param seq   The character sequence.
+     * @param start The index of the first character, inclusive.
+     * @param end   The index of the last character, exclusive.
+     * @return True if the lowercase form of the characters is a stop word, false otherwise.
+     */
+    boolean contains(CharSequence seq, int start, int end) {
+        if (this.source == null) {
+            return false;
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = seq.charAt(i);
+            if (c >= 0x80 || c == 'I' && StopWords.dotlessI()) {
+                return this.contains(seq.subSequence(start, end).toString().toLowerCase());
+            }
+            hash = 31 * hash + StopWords.lower(c);
+        }
+        for (int i = this.probe(hash); this.words[i] != null; i = i + 1 & this.words.length - 1) {
+            if (this.hashes[i] == hash && StopWords.equalsLower(this.words[i], seq, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if a lowercase text is a stop word.
+     *
+     * @param lower The lowercase text.
+     * @return True if the text is a stop word, false otherwise.
+     */
+    private boolean contains(String lower) {
+        int hash = lower.hashCode();
+        for (int i = this.probe(hash); this.words[i] != null; i = i + 1 & this.words.length - 1) {
+            if (this.hashes[i] == hash && this.words[i].equals(lower)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index in the table where the probing for the given hash starts.
+     *
+     * @param hash The hash of a word.
+     * @return The index in the table.
+     */
+    private int probe(int hash) {
+        return hash * 0x9E3779B9 >>> 16 & this.words.length - 1;
+    }
+
+    /**
+     * Determines if a word equals the lowercase form of a range of ASCII characters.
+     *
+     * @param word  The word.
+     * @param seq   The character sequence.
+     * @param start The index of the first character, inclusive.
+     * @param end   The index of the last character, exclusive.
+     * @return True if the word equals the lowercase range, false otherwise.
+     */
+    private static boolean equalsLower(String word, CharSequence seq, int start, int end) {
+        if (word.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (word.charAt(i - start) != StopWords.lower(seq.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lowercase form of an ASCII character.
+     *
+     * @param c The ASCII character.
+     * @return The lowercase character.
+     */
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Determines if the default locale lowercases {@code I} to a dotless {@code ı}, as Turkish and Azerbaijani do.
+     *
+     * @return True if {@code I} is not lowercased to {@code i}, false otherwise.
+     */
+    private static boolean dotlessI() {
+        String language = Locale.getDefault().getLanguage();
+        return "tr".equals(language) || "az".equals(language);
+    }
+}
@@ -0,0 +1,146 @@
+package a1_2001040024;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The global dictionary of terms. Every distinct case-folded text part gets a dense int id the first time it is seen,
+ * so words can be compared and hashed by id, and documents and queries can store their words as int arrays. The
+ * dictionary also interns the exact text first seen for every term and the short prefixes and suffixes, which are
+ * almost always the same few strings.
+ * <p>
+ * Ids are never reused, so the dictionary only grows, by one entry for every distinct term the process ever sees in a
+ * document, a query or a word. Reading, updating or removing documents with a known vocabulary adds nothing. Terms are
+ * not dropped when no engine uses them any more, because the id of a term outlives the engines: documents, words and
+ * queries held by callers keep it, and a reused id would make their words equal to an unrelated term. What an engine
+ * keeps per term is sized by the terms of its own documents instead, see {@link InvertedIndex#compact(int[])}.
+ */
+final class TermDictionary {
+    /**
+     * Prefixes and suffixes longer than this are too rare to be worth interning.
+     */
+    private static final int MAX_INTERNED_AFFIX_LENGTH = 8;
+
+    private static final ConcurrentMap<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String> AFFIXES = new ConcurrentHashMap<>();
+    private static final Object LOCK = new Object();
+    private static volatile String[] texts = new String[1024];
+    private static volatile int size;
+
+    /**
+     * This class only has static members.
+     */
+    private TermDictionary() {
+    }
+
+    /**
+     * Returns the id of the term of the given text part, assigning a new id if the term has not been seen before.
+     *
+     * @param text The text part of a word.
+     * @return The id of the term.
+     */
+    static int id(String text) {
+        String key = TermDictionary.fold(text);
+        Integer id = IDS.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (LOCK) {
+            id = IDS.get(key);
+            if (id == null) {
+                if (size == texts.length) {
+                    texts = Arrays.copyOf(texts, size * 2);
+                }
+                id = size;
+                texts[id] = text;
+                size = id + 1;
+                IDS.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Returns the id of the term of the given text part, or -1 if the term has never been seen.
+     *
+     * @param text The text part of a word.
+     * @return The id of the term, or -1 if there is none.
+     */
+    static int find(String text) {
+        Integer id = IDS.get(TermDictionary.fold(text));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the exact text part first seen for the given term.
+     *
+     * @param id The id of the term.
+     * @return The text part first seen for the term.
+     */
+    static String text(int id) {
+        return texts[id];
+    }
+
+    /**
+     * Returns the number of terms in the dictionary, which is also the smallest id not yet assigned.
+     *
+     * @return The number of terms.
+     */
+    static int size() {
+        return size;
+    }
+
+    /**
+     * Returns a shared instance of the given text part if it is the one first seen for its term, otherwise the text
+     * itself.
+     *
+     * @param id   The id of the term of the text.
+     * @param text The text part of a word.
+     * @return The shared instance or the text itself.
+     */
+    static String internText(int id, String text) {
+        String shared = texts[id];
+        return shared.equals(text) ? shared : text;
+    }
+
+    /**
+     * Returns a shared instance of the given prefix or suffix.
+     *
+     * @param affix The prefix or suffix of a word.
+     * @return The shared instance, or the affix itself if it is too long to be interned.
+     */
+    static String internAffix(String affix) {
+        if (affix.isEmpty()) {
+            return "";
+        }
+        if (affix.length() > MAX_INTERNED_AFFIX_LENGTH) {
+            return affix;
+        }
+        String shared = AFFIXES.putIfAbsent(affix, affix);
+        return shared == null ? affix : shared;
+    }
+
+    /**
+     * Folds the case of the given text with the same per-character rule as {@link String#equalsIgnoreCase(String)},
+     * so two texts have the same folded form if and only if they are equal ignoring case.
+     *
+     * @param text The text to fold.
+     * @return The folded text.
+     */
+    static String fold(String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if (folded != c) {
+                // Only copy the text once a character actually changes
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = folded;
+            }
+        }
+        return chars == null ? text : new String(chars);
+    }
+}
@@ -9,12 +9,31 @@ import java.util.stream.Stream;
 
 /**
  * The Word class represents a word from a document. A Word object consists of a prefix, text part, a suffix, and a
- * boolean flag to indicate its validity. The class also includes a static set of stop words.
+ * boolean flag to indicate its validity. The class also includes a static set of stop words. Every word carries the id
+ * of its case-folded text part in the {@link TermDictionary}, which is what words are compared and hashed by.
  */
 public class Word {
+    /**
+     * Returned by {@link #scan} for an invalid word.
+     */
+    static final int INVALID = 0;
+    /**
+     * Returned by {@link #scan} for a valid word whose text part is found in the raw text.
+     */
+    static final int VALID = 1;
+    /**
+     * Returned by {@link #scan} for a word whose text characters are not next to each other, for example {@code «é.é»}.
+     * Such a word may still turn out to be invalid once its trailing 's is removed.
+     */
+    static final int SCATTERED = 2;
+
     public static Set<String> stopWords;
+    private static volatile StopWords stopWordTable = new StopWords(null, 1);
     private final String prefix, text, suffix;
     private final boolean valid;
+    private final int termId;
+    // Stop-word generation the keyword flag was computed for, shifted left by one, with the flag in the lowest bit
+    private int keywordState;
 
     /**
      * Constructs a new Word object with the given prefix, text part, suffix, and validity flag.
@@ -25,9 +44,27 @@ public class Word {
      * @param valid  the validity flag of the word.
      */
     public Word(String prefix, String text, String suffix, boolean valid) {
-        this.prefix = prefix;
-        this.text = text;
-        this.suffix = suffix;
+        this.termId = TermDictionary.id(text);
+        this.prefix = TermDictionary.internAffix(prefix);
+        this.text = TermDictionary.internText(this.termId, text);
+        this.suffix = TermDictionary.internAffix(suffix);
+        this.valid = valid;
+    }
+
+    /**
+     * Constructs a new Word object whose term id is already known, so the term dictionary is not looked up again.
+     *
+     * @param prefix the prefix part of the word.
+     * @param text   the text part of the word.
+     * @param suffix the suffix part of the word.
+     * @param valid  the validity flag of the word.
+     * @param termId the id of the case-folded text part.
+     */
+    Word(String prefix, String text, String suffix, boolean valid, int termId) {
+        this.termId = termId;
+        this.prefix = TermDictionary.internAffix(prefix);
+        this.text = TermDictionary.internText(termId, text);
+        this.suffix = TermDictionary.internAffix(suffix);
         this.valid = valid;
     }
 
@@ -38,41 +75,206 @@ public class Word {
      * @return the created Word object.
      */
     public static Word createWord(String rawText) {
-        String prefix, text, suffix;
-        boolean valid;
-        // Let text part be all letters, hyphens, apostrophes in rawText
-        text = rawText.replaceAll("[^\\p{L}'-]", "");
-        // Split rawText into two parts using text in the middle
-        String[] parts = rawText.split(text, 2);
-        // In case split has no match, it returns a 1 element array with the original rawText, so
-        // prefix become the same as rawText
-        prefix = parts[0];
-        // If parts has two elements, assign the second element to suffix, otherwise set empty
-        // string as suffix
-        suffix = parts.length == 2 ? parts[1] : "";
-        // Word is valid if
-        valid = text.matches(".*\\p{L}.*") // Text part has at least 1 letter
-                && !prefix.matches(".*\\p{Alnum}.*") // Prefix doesn't contain alphanumeric
-                && !suffix.matches(".*\\p{Alnum}.*"); // Suffix doesn't contain alphanumeric
-        // Detect text ending with 's and set suffix
-        if (text.endsWith("'s")) {
-            text = text.substring(0, text.length() - 2);
-            suffix = "'s" + suffix;
+        return Word.createWord(rawText, 0, rawText.length());
+    }
+
+    /**
+     * Constructs and returns a new Word object from the raw text between the given indexes of a character sequence.
+     *
+     * @param seq   the character sequence which contains the raw text.
+     * @param start the index of the first character of the raw text, inclusive.
+     * @param end   the index of the last character of the raw text, exclusive.
+     * @return the created Word object.
+     */
+    static Word createWord(CharSequence seq, int start, int end) {
+        int[] bounds = new int[2];
+        switch (Word.scan(seq, start, end, bounds)) {
+            case Word.VALID:
+                return new Word(seq.subSequence(start, bounds[0]).toString(),
+                                seq.subSequence(bounds[0], bounds[1]).toString(),
+                                seq.subSequence(bounds[1], end).toString(),
+                                true);
+            case Word.SCATTERED:
+                return Word.createScatteredWord(seq, start, end);
+            default:
+                return Word.invalidWord(seq, start, end);
+        }
+    }
+
+    /**
+     * Constructs and returns a new Word object from the raw text between the given indexes of a character sequence if
+     * it is a keyword. A valid word is looked up in the stop words before any of its parts is copied, so nothing is
+     * built for a stop word or an invalid word.
+     *
+     * @param seq    the character sequence which contains the raw text.
+     * @param start  the index of the first character of the raw text, inclusive.
+     * @param end    the index of the last character of the raw text, exclusive.
+     * @param bounds the array to scan the start and end of the text part into.
+     * @return the created Word object, or null if the word is not a keyword.
+     */
+    static Word createKeyword(CharSequence seq, int start, int end, int[] bounds) {
+        switch (Word.scan(seq, start, end, bounds)) {
+            case Word.VALID:
+                StopWords table = Word.stopWordTable();
+                if (table.contains(seq, bounds[0], bounds[1])) {
+                    return null;
+                }
+                Word word = new Word(seq.subSequence(start, bounds[0]).toString(),
+                                     seq.subSequence(bounds[0], bounds[1]).toString(),
+                                     seq.subSequence(bounds[1], end).toString(),
+                                     true);
+                word.keywordState = table.generation() << 1 | 1;
+                return word;
+            case Word.SCATTERED:
+                Word scattered = Word.createScatteredWord(seq, start, end);
+                return scattered.isKeyword() ? scattered : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Scans the raw text between the given indexes of a character sequence once, without regular expressions, to find
+     * the text part (all letters, hyphens and apostrophes), the prefix before it and the suffix after it. For a valid
+     * word, the start and end of the text part are stored in the first two elements of bounds.
+     *
+     * @param seq    the character sequence which contains the raw text.
+     * @param start  the index of the first character of the raw text, inclusive.
+     * @param end    the index of the last character of the raw text, exclusive.
+     * @param bounds the array to store the start and end of the text part in.
+     * @return {@link #VALID} for a valid word, {@link #SCATTERED} for a word whose text characters are not next to each
+     * other, or {@link #INVALID} for an invalid word.
+     */
+    static int scan(CharSequence seq, int start, int end, int[] bounds) {
+        int textStart = -1;
+        int textEnd = -1;
+        boolean hasLetter = false;
+        boolean contiguous = true;
+        for (int i = start; i < end; ) {
+            int codePoint = Word.codePointAt(seq, i, end);
+            int next = i + Character.charCount(codePoint);
+            if (codePoint == '\'' || codePoint == '-' || Character.isLetter(codePoint)) {
+                if (textStart < 0) {
+                    textStart = i;
+                } else if (textEnd != i) {
+                    // Text characters are separated by a prefix or suffix character
+                    contiguous = false;
+                }
+                textEnd = next;
+                hasLetter |= Character.isLetter(codePoint);
+            }
+            i = next;
+        }
+        // Word is valid if text part has at least 1 letter and prefix and suffix don't contain alphanumeric
+        if (!hasLetter) {
+            return Word.INVALID;
+        }
+        if (!contiguous) {
+            // The text part is not found in the raw text, so the whole raw text is the prefix
+            return Word.containsAlnum(seq, start, end) ? Word.INVALID : Word.SCATTERED;
+        }
+        if (Word.containsAlnum(seq, start, textStart) || Word.containsAlnum(seq, textEnd, end)) {
+            return Word.INVALID;
+        }
+        // Detect text ending with 's and move it to the suffix
+        if (textEnd - textStart >= 2 && seq.charAt(textEnd - 2) == '\'' && seq.charAt(textEnd - 1) == 's') {
+            textEnd -= 2;
         }
         // If text part becomes empty, word is invalid
-        if (text.isEmpty()) {
-            valid = false;
+        if (textStart == textEnd) {
+            return Word.INVALID;
         }
-        // Set empty suffix and prefix, text as rawText when word is invalid
-        if (!valid) {
-            prefix = suffix = "";
-            text = rawText;
+        bounds[0] = textStart;
+        bounds[1] = textEnd;
+        return Word.VALID;
+    }
+
+    /**
+     * Constructs a word whose text characters are not next to each other, for example {@code «é.é»}. The text part is
+     * every text character joined together, the prefix is the whole raw text and the suffix is empty, except for a
+     * trailing 's.
+     *
+     * @param seq   the character sequence which contains the raw text.
+     * @param start the index of the first character of the raw text, inclusive.
+     * @param end   the index of the last character of the raw text, exclusive.
+     * @return the created Word object.
+     */
+    private static Word createScatteredWord(CharSequence seq, int start, int end) {
+        StringBuilder text = new StringBuilder();
+        for (int i = start; i < end; ) {
+            int codePoint = Word.codePointAt(seq, i, end);
+            if (codePoint == '\'' || codePoint == '-' || Character.isLetter(codePoint)) {
+                text.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        String suffix = "";
+        int length = text.length();
+        if (length >= 2 && text.charAt(length - 2) == '\'' && text.charAt(length - 1) == 's') {
+            text.setLength(length - 2);
+            suffix = "'s";
+        }
+        if (text.length() == 0) {
+            return Word.invalidWord(seq, start, end);
+        }
+        return new Word(seq.subSequence(start, end).toString(), text.toString(), suffix, true);
+    }
+
+    /**
+     * Constructs an invalid word, which has empty prefix, empty suffix and the raw text as its text part.
+     *
+     * @param seq   the character sequence which contains the raw text.
+     * @param start the index of the first character of the raw text, inclusive.
+     * @param end   the index of the last character of the raw text, exclusive.
+     * @return the created Word object.
+     */
+    private static Word invalidWord(CharSequence seq, int start, int end) {
+        return new Word("", seq.subSequence(start, end).toString(), "", false);
+    }
+
+    /**
+     * Returns the code point at the given index, without pairing a high surrogate with a character at or after the end
+     * of the raw text.
+     *
+     * @param seq   the character sequence.
+     * @param index the index of the code point.
+     * @param end   the end of the raw text, exclusive.
+     * @return the code point at the given index.
+     */
+    private static int codePointAt(CharSequence seq, int index, int end) {
+        char high = seq.charAt(index);
+        if (Character.isHighSurrogate(high) && index + 1 < end) {
+            char low = seq.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Determines if the given range contains an ASCII letter or digit. A range which contains a line terminator never
+     * counts, the same as matching it against {@code .*\p{Alnum}.*}.
+     *
+     * @param seq   the character sequence.
+     * @param start the start of the range, inclusive.
+     * @param end   the end of the range, exclusive.
+     * @return true if the range contains an alphanumeric character, false otherwise.
+     */
+    private static boolean containsAlnum(CharSequence seq, int start, int end) {
+        boolean alnum = false;
+        for (int i = start; i < end; i++) {
+            char c = seq.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+            alnum |= c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
         }
-        return new Word(prefix, text, suffix, valid);
+        return alnum;
     }
 
     /**
-     * Loads a set of stop words from the given file.
+     * Loads a set of stop words from the given file, and builds the table the words are looked up in.
      *
      * @param fileName the name of the file that contains the stop words.
      * @return true if the stop words are successfully loaded, false otherwise.
@@ -80,6 +282,7 @@ public class Word {
     public static boolean loadStopWords(String fileName) {
         try (Stream<String> lines = Files.lines(Paths.get(fileName))) {
             Word.stopWords = lines.collect(Collectors.toSet());
+            Word.stopWordTable();
             return true;
         } catch (IOException e) {
             // System.out.println("An error occurred while loading stop words: " + e.getMessage());
@@ -88,18 +291,58 @@ public class Word {
     }
 
     /**
-     * Determines if the Word object is a keyword.
+     * Determines if the Word object is a keyword. The answer is cached until the stop words are replaced.
      *
      * @return true if the Word object is a keyword, false otherwise.
      */
     public boolean isKeyword() {
         if (this.valid) {
-            return Word.stopWords == null || !Word.stopWords.contains(this.text.toLowerCase());
+            StopWords table = Word.stopWordTable();
+            int state = this.keywordState;
+            if (state >>> 1 != table.generation()) {
+                // The flag is computed once per set of stop words and cached in a single field, so a racing thread
+                // either sees a complete state or computes it again
+                boolean keyword = !table.contains(this.text, 0, this.text.length());
+                state = table.generation() << 1 | (keyword ? 1 : 0);
+                this.keywordState = state;
+            }
+            return (state & 1) != 0;
         } else {
             return false;
         }
     }
 
+    /**
+     * Returns the generation of the stop words, which changes every time {@link #stopWords} is replaced by
+     * {@link #loadStopWords(String)} or by assigning the field directly. Changing the contents of the set in place is
+     * not detected.
+     *
+     * @return the current stop-word generation, which is always positive.
+     */
+    static int stopWordsGeneration() {
+        return Word.stopWordTable().generation();
+    }
+
+    /**
+     * Returns the table of the current stop words, building it again if {@link #stopWords} has been replaced.
+     *
+     * @return the table of the stop words.
+     */
+    static StopWords stopWordTable() {
+        StopWords table = Word.stopWordTable;
+        if (Word.stopWords != table.source()) {
+            synchronized (Word.class) {
+                table = Word.stopWordTable;
+                Set<String> words = Word.stopWords;
+                if (words != table.source()) {
+                    table = new StopWords(words, table.generation() + 1);
+                    Word.stopWordTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
     /**
      * Returns the prefix part of the word.
      *
@@ -137,15 +380,25 @@ public class Word {
     }
 
     /**
-     * Computes the hash code for this Word instance. The hash code is computed based on the text part of the Word,
-     * case-insensitively. This means that two Word instances with the same text part but different cases will have the
-     * same hash code.
+     * Returns the id of the case-folded text part in the term dictionary. Two words have the same term id if and only
+     * if they are equal according to {@link #equals(Object)}.
+     *
+     * @return the term id of the word.
+     */
+    int getTermId() {
+        return this.termId;
+    }
+
+    /**
+     * Computes the hash code for this Word instance. The hash code is the term id, which is computed based on the text
+     * part of the Word, case-insensitively. This means that two Word instances with the same text part but different
+     * cases will have the same hash code.
      *
      * @return the computed hash code.
      */
     @Override
     public int hashCode() {
-        return this.text.toLowerCase().hashCode();
+        return this.termId;
     }
 
     /**
@@ -164,7 +417,7 @@ public class Word {
         }
         Word word;
         word = (Word) o;
-        return this.text.equalsIgnoreCase(word.text);
+        return this.termId == word.termId;
     }
 
     /**
@@ -0,0 +1,259 @@
+package a1_2001040024;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Searches an engine from several threads while another thread loads, updates, adds, removes and compacts its
+ * documents, and checks that every search returns sorted results without failing, and that the engine ends up the
+ * same as one freshly loaded from the final files.
+ */
+public class EngineStressTest {
+    /**
+     * The number of files in the generated corpus.
+     */
+    private static final int FILES = 400;
+
+    /**
+     * The number of threads which search while the documents change.
+     */
+    private static final int SEARCHERS = 4;
+
+    /**
+     * The number of rounds of changes, each of which loads the corpus again and then changes single documents.
+     */
+    private static final int ROUNDS = 4;
+
+    /**
+     * The number of single document changes in every round.
+     */
+    private static final int CHANGES = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private List<String> vocabulary;
+    private List<Path> files;
+
+    /**
+     * Writes a corpus of generated documents, whose words are drawn from the documents in docs/.
+     *
+     * @throws IOException If the documents cannot be read or the corpus cannot be written.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Word.loadStopWords("stopwords.txt");
+        this.vocabulary = new ArrayList<>();
+        try (Stream<Path> list = Files.list(Paths.get("docs"))) {
+            for (Path file : list.sorted().collect(Collectors.toList())) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    Collections.addAll(this.vocabulary, line.split(" "));
+                }
+            }
+        }
+        this.dir = this.folder.newFolder("corpus").toPath();
+        this.files = new ArrayList<>();
+        Random random = new Random(15);
+        for (int i = 0; i < FILES; i++) {
+            Path file = this.dir.resolve(String.format("%04d.txt", i));
+            this.write(file, random);
+            this.files.add(file);
+        }
+    }
+
+    /**
+     * Runs the searchers against the changing engine, then brings every file in line and compares the engine with a
+     * freshly loaded one.
+     *
+     * @throws Exception If a file cannot be written or a thread is interrupted.
+     */
+    @Test
+    public void searchesWhileDocumentsChange() throws Exception {
+        Engine engine = new Engine(16);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        engine.setSearchShards(2, pool);
+        engine.setQueryCache(new QueryCache(64, 1 << 20));
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong searches = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> searchers = new ArrayList<>();
+        for (int t = 0; t < SEARCHERS; t++) {
+            Random random = new Random(t);
+            Thread searcher = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        Query query = new Query(this.phrase(random));
+                        EngineStressTest.assertSorted(engine.search(query));
+                        List<Result> top = engine.search(query, 5);
+                        assertTrue("search(q, 5) returned " + top.size() + " results", top.size() <= 5);
+                        EngineStressTest.assertSorted(top);
+                        searches.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            searcher.start();
+            searchers.add(searcher);
+        }
+        try {
+            Random random = new Random(42);
+            for (int round = 0; round < ROUNDS && failure.get() == null; round++) {
+                // Loading again appends every file once more, which the later changes have to clean up
+                engine.loadDocs(this.dir.toString(), 2);
+                for (int i = 0; i < CHANGES; i++) {
+                    Path file = this.files.get(random.nextInt(FILES));
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            this.write(file, random);
+                            engine.updateDoc(file.toString());
+                            break;
+                        case 1:
+                            engine.removeDoc(file.toString());
+                            break;
+                        case 2:
+                            engine.addDoc(file.toString());
+                            break;
+                        default:
+                            if (random.nextInt(20) == 0) {
+                                engine.compact();
+                            }
+                    }
+                }
+            }
+            engine.syncDocs(this.files.stream().map(Path::toString).collect(Collectors.toList()));
+        } finally {
+            stop.set(true);
+            for (Thread searcher : searchers) {
+                searcher.join();
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        assertNull("a search failed: " + failure.get(), failure.get());
+        assertTrue("no search ran", searches.get() > 0);
+
+        Engine fresh = new Engine();
+        fresh.loadDocs(this.dir.toString());
+        assertEquals(EngineStressTest.count(fresh.getDocs()), EngineStressTest.count(engine.getDocs()));
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            String phrase = this.phrase(random);
+            Query query = new Query(phrase);
+            assertEquals(phrase, EngineStressTest.canonical(fresh.search(query)),
+                         EngineStressTest.canonical(engine.search(query)));
+        }
+    }
+
+    /**
+     * Writes a generated document to the given file.
+     *
+     * @param file   The file to write.
+     * @param random The random generator.
+     * @throws IOException If the file cannot be written.
+     */
+    private void write(Path file, Random random) throws IOException {
+        String content = this.words(random, 2 + random.nextInt(5)) + "\n" + this.words(random, 20 + random.nextInt(60));
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Generates a search phrase of one to three words.
+     *
+     * @param random The random generator.
+     * @return The search phrase.
+     */
+    private String phrase(Random random) {
+        return this.words(random, 1 + random.nextInt(3));
+    }
+
+    /**
+     * Draws the given number of words from the vocabulary.
+     *
+     * @param random The random generator.
+     * @param count  The number of words.
+     * @return The words, separated by spaces.
+     */
+    private String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(this.vocabulary.get(random.nextInt(this.vocabulary.size())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Asserts that results are in ranking order and that every result has a match.
+     *
+     * @param results The results.
+     */
+    private static void assertSorted(List<Result> results) {
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue("result without matches", results.get(i).getMatchCount() > 0);
+            if (i > 0) {
+                assertTrue("results out of order", results.get(i - 1).compareTo(results.get(i)) <= 0);
+            }
+        }
+    }
+
+    /**
+     * Counts how many times every document occurs.
+     *
+     * @param docs The documents.
+     * @return The number of occurrences of every document.
+     */
+    private static Map<Doc, Integer> count(Doc[] docs) {
+        Map<Doc, Integer> counts = new HashMap<>();
+        for (Doc doc : docs) {
+            counts.merge(doc, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Describes results by their ranking values and highlighted HTML, in sorted order, so two engines which hold the
+     * same documents in another order give the same description.
+     *
+     * @param results The results.
+     * @return The sorted descriptions of the results.
+     */
+    private static List<String> canonical(List<Result> results) {
+        List<String> descriptions = new ArrayList<>();
+        for (Result result : results) {
+            descriptions.add(result.getMatchCount() + "|" + result.getTotalFrequency() + "|"
+                             + result.getAverageFirstIndex() + "|" + result.htmlHighlight());
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+}
@@ -0,0 +1,148 @@
+package a1_2001040024;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * Compares the one-pass scanner behind {@link Word#createWord(String)} with the regular expression chain it replaced,
+ * which is kept below as the reference, on every word of the documents in docs/ and on random Unicode text.
+ */
+public class WordScanTest {
+    /**
+     * The number of random words to compare.
+     */
+    private static final int RANDOM_WORDS = 500000;
+
+    /**
+     * Characters the random words are built from: ASCII and other letters, apostrophes and hyphens, ASCII and other
+     * digits, punctuation, combining marks, line terminators and regular expression metacharacters.
+     */
+    private static final String[] POOLS = {
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ",
+        "éÉßİıçÇñøåæœÆ中文日本語한국어ДжЯйяαβγΩ",
+        "'-'-''--",
+        "0123456789",
+        "٣٤५६１２",
+        ".,;:!?()[]{}<>\"«»“”‘’/\\@#$%^&*+=_|~`",
+        "̧́̈⃝",
+        "\n\r\u0085  ",
+        "\t  ",
+    };
+
+    /**
+     * Every word of the documents gives the same Word as the reference.
+     *
+     * @throws IOException If the documents cannot be read.
+     */
+    @Test
+    public void matchesReferenceOnDocs() throws IOException {
+        int words = 0;
+        Path[] files;
+        try (Stream<Path> list = Files.list(Paths.get("docs"))) {
+            files = list.sorted().toArray(Path[]::new);
+        }
+        for (Path file : files) {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            for (String line : content.split("\\R")) {
+                for (String raw : line.split(" ")) {
+                    WordScanTest.assertSameWord(raw);
+                    words++;
+                }
+            }
+        }
+        assertTrue("docs/ should not be empty", words > 0);
+    }
+
+    /**
+     * Random words, mixing characters of every kind the scanner treats differently, give the same Word as the
+     * reference.
+     */
+    @Test
+    public void matchesReferenceOnRandomUnicode() {
+        Random random = new Random(2002);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RANDOM_WORDS; i++) {
+            sb.setLength(0);
+            int length = random.nextInt(12);
+            for (int n = 0; n < length; n++) {
+                if (random.nextInt(40) == 0) {
+                    // A letter outside of the BMP, or a lone surrogate
+                    sb.appendCodePoint(random.nextBoolean()
+                                       ? 0x1D400 + random.nextInt(52)
+                                       : 0xD800 + random.nextInt(0x800));
+                } else {
+                    String pool = POOLS[random.nextInt(POOLS.length)];
+                    sb.append(pool.charAt(random.nextInt(pool.length())));
+                }
+            }
+            WordScanTest.assertSameWord(sb.toString());
+        }
+    }
+
+    /**
+     * Words picked to hit the edge cases of the reference: the 's rule, text characters which are not next to each
+     * other, digits next to the text, and line terminators in the prefix and suffix.
+     */
+    @Test
+    public void matchesReferenceOnEdgeCases() {
+        String[] raws = {"", "'s", "'S", "a's", "a's's", "(other's)", "don't", "x-", "--", "'''", "ab'c's.", "a.b",
+                         "«Word»", ",se2021.", "se2021", "5\",", "É'S", "a\nb", "\na.", ".a ", "a1", "1a",
+                         "word,", "٣word", "word٣", "́a", "á", "it's.", "'s'", "-'s-"};
+        for (String raw : raws) {
+            WordScanTest.assertSameWord(raw);
+        }
+    }
+
+    /**
+     * Asserts that the scanner and the reference split a raw word the same way.
+     *
+     * @param raw The raw word.
+     */
+    private static void assertSameWord(String raw) {
+        Word word = Word.createWord(raw);
+        String[] expected = WordScanTest.reference(raw);
+        String actual = word.getPrefix() + '|' + word.getText() + '|' + word.getSuffix() + '|' + word.isValid();
+        assertEquals("createWord(\"" + raw + "\")",
+                     expected[0] + '|' + expected[1] + '|' + expected[2] + '|' + expected[3], actual);
+    }
+
+    /**
+     * The regular expression implementation of Word.createWord before the scanner replaced it.
+     *
+     * @param rawText The raw text.
+     * @return The prefix, text part, suffix and validity of the word.
+     */
+    private static String[] reference(String rawText) {
+        String prefix, text, suffix;
+        boolean valid;
+        text = rawText.replaceAll("[^\\p{L}'-]", "");
+        String[] parts = rawText.split(text, 2);
+        prefix = parts[0];
+        suffix = parts.length == 2 ? parts[1] : "";
+        valid = text.matches(".*\\p{L}.*")
+                && !prefix.matches(".*\\p{Alnum}.*")
+                && !suffix.matches(".*\\p{Alnum}.*");
+        if (text.endsWith("'s")) {
+            text = text.substring(0, text.length() - 2);
+            suffix = "'s" + suffix;
+        }
+        if (text.isEmpty()) {
+            valid = false;
+        }
+        if (!valid) {
+            prefix = suffix = "";
+            text = rawText;
+        }
+        return new String[]{prefix, text, suffix, String.valueOf(valid)};
+    }
+}